@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.jennite.vcf;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Least recently used decoded genotype rows, by VCF, samples subset and position. The cache is bounded by the memory
+ * used by the rows, as a row size depends on the count of samples.
+ */
+class JenniteVCFGenotypeCache {
+
+  private final Map<Key, Row> rows = new LinkedHashMap<>(16, 0.75f, true);
+
+  private final long maxSize;
+
+  private long size = 0;
+
+  /**
+   * @param maxSize maximum size of the cached rows, in bytes
+   */
+  JenniteVCFGenotypeCache(long maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  synchronized Row get(String vcf, List<String> samples, String position) {
+    return rows.get(new Key(vcf, samples, position));
+  }
+
+  /**
+   * Cache a row and evict the least recently used ones if the cache is too big. A row that is bigger than the cache
+   * is not kept.
+   *
+   * @param vcf
+   * @param samples
+   * @param position
+   * @param row
+   */
+  synchronized void put(String vcf, List<String> samples, String position, Row row) {
+    Row previous = rows.remove(new Key(vcf, samples, position));
+    if (previous != null) size -= previous.getSize();
+    if (row.getSize() > maxSize) return;
+    rows.put(new Key(vcf, samples, position), row);
+    size += row.getSize();
+    Iterator<Row> eldest = rows.values().iterator();
+    while (size > maxSize) {
+      size -= eldest.next().getSize();
+      eldest.remove();
+    }
+  }
+
+  /**
+   * Forget the rows of a VCF, when its data have changed.
+   *
+   * @param vcf
+   */
+  synchronized void invalidate(String vcf) {
+    Iterator<Map.Entry<Key, Row>> entries = rows.entrySet().iterator();
+    while (entries.hasNext()) {
+      Map.Entry<Key, Row> entry = entries.next();
+      if (!entry.getKey().vcf().equals(vcf)) continue;
+      size -= entry.getValue().getSize();
+      entries.remove();
+    }
+  }
+
+  /**
+   * Get the size of the cached rows.
+   *
+   * @return The estimated memory used, in bytes
+   */
+  synchronized long getSize() {
+    return size;
+  }
+
+  /**
+   * Genotype codes and dosages (null if not available) of the samples subset at a position.
+   */
+  record Row(byte[] genotypes, float[] dosages) {
+
+    // arrays headers and cache entry
+    private static final int OVERHEAD = 128;
+
+    long getSize() {
+      return OVERHEAD + genotypes.length + (dosages == null ? 0 : 4L * dosages.length);
+    }
+  }
+
+  private record Key(String vcf, List<String> samples, String position) {
+  }
+}
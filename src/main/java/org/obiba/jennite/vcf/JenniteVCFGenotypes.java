@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.jennite.vcf;
+
+import java.util.List;
+
+/**
+ * Genotypes of some samples at some positions of a VCF. Each genotype is coded as the count of alternate alleles
+ * (0 for homozygous reference, 1 for heterozygous, 2 for homozygous alternate in a diploid call), {@link #MISSING}
+ * when the call is missing or when the sample or the position is not in the VCF. The dosages (DS format field) are
+ * also provided when the VCF has them.
+ */
+public class JenniteVCFGenotypes {
+
+  public static final byte MISSING = -1;
+
+  private final List<String> sampleIds;
+
+  private final List<String> positions;
+
+  private final byte[] genotypes;
+
+  private final float[] dosages;
+
+  JenniteVCFGenotypes(List<String> sampleIds, List<String> positions, byte[] genotypes, float[] dosages) {
+    this.sampleIds = sampleIds;
+    this.positions = positions;
+    this.genotypes = genotypes;
+    this.dosages = dosages;
+  }
+
+  /**
+   * The matrix columns.
+   *
+   * @return
+   */
+  public List<String> getSampleIds() {
+    return sampleIds;
+  }
+
+  /**
+   * The matrix rows, as requested (chromosome:position).
+   *
+   * @return
+   */
+  public List<String> getPositions() {
+    return positions;
+  }
+
+  public byte getGenotype(int position, int sample) {
+    return genotypes[position * sampleIds.size() + sample];
+  }
+
+  public boolean hasDosages() {
+    return dosages != null;
+  }
+
+  /**
+   * Get the dosage of a sample at a position.
+   *
+   * @param position
+   * @param sample
+   * @return NaN if the dosage is missing
+   */
+  public float getDosage(int position, int sample) {
+    return dosages == null ? Float.NaN : dosages[position * sampleIds.size() + sample];
+  }
+
+  /**
+   * Get the genotypes matrix, by position then by sample.
+   *
+   * @return
+   */
+  public byte[] getGenotypes() {
+    return genotypes;
+  }
+
+  /**
+   * Get the dosages matrix, by position then by sample.
+   *
+   * @return null if the VCF has no dosages
+   */
+  public float[] getDosages() {
+    return dosages;
+  }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.jennite.vcf;
+
+import java.io.*;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares the data disk bandwidth between the VCF exports (foreground) and the VCF ingestions (background): each class
+ * of transfer has a token-bucket bandwidth limit and, while exports are running, ingestions are limited to the part of
+ * the total bandwidth that is not reserved for the exports. An export is running from its registration, so that the
+ * bandwidth is also reserved while bcftools subsets or converts the data. Throughput is measured per class.
+ */
+public class JenniteVCFIOScheduler {
+
+  public enum IOClass {
+    FOREGROUND, BACKGROUND
+  }
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  // seconds of throughput history
+  private static final int WINDOW = 5;
+
+  private final long bandwidth;
+
+  private final double foregroundShare;
+
+  private final AtomicInteger foregroundExports = new AtomicInteger();
+
+  private final Bucket foreground;
+
+  private final Bucket background;
+
+  /**
+   * Bandwidths are in bytes per second, 0 meaning unlimited.
+   *
+   * @param bandwidth total bandwidth of the data disk
+   * @param foregroundShare part of the total bandwidth reserved for the exports while they are running
+   * @param foregroundRate bandwidth limit of the exports
+   * @param backgroundRate bandwidth limit of the ingestions
+   */
+  JenniteVCFIOScheduler(long bandwidth, double foregroundShare, long foregroundRate, long backgroundRate) {
+    this.bandwidth = Math.max(0, bandwidth);
+    this.foregroundShare = Math.min(1, Math.max(0, foregroundShare));
+    this.foreground = new Bucket(Math.max(0, foregroundRate));
+    this.background = new Bucket(Math.max(0, backgroundRate));
+  }
+
+  static JenniteVCFIOScheduler newScheduler(Properties properties) {
+    if (properties == null) return new JenniteVCFIOScheduler(0, 0, 0, 0);
+    double foregroundShare;
+    try {
+      foregroundShare = Double.parseDouble(properties.getProperty("io.export.share", "0.5").trim());
+    } catch (NumberFormatException e) {
+      foregroundShare = 0.5;
+    }
+    return new JenniteVCFIOScheduler(getLong(properties, "io.bandwidth"), foregroundShare,
+        getLong(properties, "io.export.rate"), getLong(properties, "io.ingest.rate"));
+  }
+
+  /**
+   * Get the current throughput of a class of transfers, in bytes per second.
+   *
+   * @param ioClass
+   * @return
+   */
+  public long getThroughput(IOClass ioClass) {
+    return getBucket(ioClass).getThroughput();
+  }
+
+  /**
+   * Get the count of bytes transferred by a class of transfers since the service started.
+   *
+   * @param ioClass
+   * @return
+   */
+  public long getBytes(IOClass ioClass) {
+    return getBucket(ioClass).bytes.get();
+  }
+
+  /**
+   * Register a running export, until the returned registration is closed.
+   *
+   * @return
+   */
+  Registration foreground() {
+    foregroundExports.incrementAndGet();
+    AtomicBoolean closed = new AtomicBoolean();
+    return () -> {
+      if (closed.compareAndSet(false, true)) foregroundExports.decrementAndGet();
+    };
+  }
+
+  @Override
+  public String toString() {
+    return String.format("foreground: %d bytes/s, background: %d bytes/s", getThroughput(IOClass.FOREGROUND), getThroughput(IOClass.BACKGROUND));
+  }
+
+  /**
+   * Copy a stream to another one within the bandwidth of the class of transfer.
+   *
+   * @param in
+   * @param out
+   * @param ioClass
+   * @return The count of bytes transferred
+   * @throws IOException
+   */
+  long transfer(InputStream in, OutputStream out, IOClass ioClass) throws IOException {
+    long count = 0;
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int n;
+    while ((n = in.read(buffer)) >= 0) {
+      acquire(ioClass, n);
+      out.write(buffer, 0, n);
+      count += n;
+    }
+    return count;
+  }
+
+  /**
+   * Read a stream within the bandwidth of the class of transfer.
+   *
+   * @param in
+   * @param ioClass
+   * @return
+   */
+  InputStream throttle(InputStream in, IOClass ioClass) {
+    return new FilterInputStream(in) {
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) acquire(ioClass, 1);
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) acquire(ioClass, n);
+        return n;
+      }
+    };
+  }
+
+  private void acquire(IOClass ioClass, int count) throws InterruptedIOException {
+    getBucket(ioClass).acquire(count, getRate(ioClass));
+  }
+
+  /**
+   * Get the current bandwidth limit of a class of transfers.
+   *
+   * @param ioClass
+   * @return The rate in bytes per second, 0 if unlimited
+   */
+  long getRate(IOClass ioClass) {
+    long rate = getBucket(ioClass).rate;
+    if (IOClass.BACKGROUND == ioClass && bandwidth > 0) {
+      long available = foregroundExports.get() > 0 ? (long) (bandwidth * (1 - foregroundShare)) : bandwidth;
+      // keep some progress even when all the bandwidth is reserved
+      available = Math.max(available, BUFFER_SIZE);
+      rate = rate == 0 ? available : Math.min(rate, available);
+    }
+    return rate;
+  }
+
+  private Bucket getBucket(IOClass ioClass) {
+    return IOClass.FOREGROUND == ioClass ? foreground : background;
+  }
+
+  private static long getLong(Properties properties, String key) {
+    try {
+      return Long.parseLong(properties.getProperty(key, "0").trim());
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * A running export, that is over when closed.
+   */
+  interface Registration extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  /**
+   * Token bucket with a one second burst, that also measures the throughput.
+   */
+  private static class Bucket {
+
+    private final long rate;
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final long[] seconds = new long[WINDOW];
+
+    private final long[] secondBytes = new long[WINDOW];
+
+    private double tokens = 0;
+
+    private long lastRefill = System.nanoTime();
+
+    private Bucket(long rate) {
+      this.rate = rate;
+    }
+
+    /**
+     * Take tokens for the bytes transferred, and wait if the bucket is in debt.
+     *
+     * @param count
+     * @param rate current rate, 0 if unlimited
+     * @throws InterruptedIOException
+     */
+    private void acquire(int count, long rate) throws InterruptedIOException {
+      long waitNanos = 0;
+      synchronized (this) {
+        record(count);
+        long now = System.nanoTime();
+        if (rate <= 0) {
+          tokens = 0;
+        } else {
+          tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1e9) - count;
+          if (tokens < 0) waitNanos = (long) (-tokens * 1e9 / rate);
+        }
+        lastRefill = now;
+      }
+      if (waitNanos <= 0) return;
+      try {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Transfer was interrupted");
+      }
+    }
+
+    private void record(int count) {
+      bytes.addAndGet(count);
+      long second = System.currentTimeMillis() / 1000;
+      int idx = (int) (second % WINDOW);
+      if (seconds[idx] != second) {
+        seconds[idx] = second;
+        secondBytes[idx] = 0;
+      }
+      secondBytes[idx] += count;
+    }
+
+    /**
+     * Average of the last complete seconds.
+     *
+     * @return
+     */
+    private synchronized long getThroughput() {
+      long second = System.currentTimeMillis() / 1000;
+      long total = 0;
+      for (int i = 0; i < WINDOW; i++) {
+        if (seconds[i] < second && seconds[i] >= second - (WINDOW - 1)) total += secondBytes[i];
+      }
+      return total / (WINDOW - 1);
+    }
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.jennite.vcf;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of the ingestion of one or more VCF/BCF files, per file and in aggregate. It can be polled while the
+ * files are being written in the store.
+ */
+public class JenniteVCFIngestProgress {
+
+  public enum Stage {
+    QUEUED, COPY, COMPRESS, INDEX, SAMPLES, STATISTICS, DONE, FAILED
+  }
+
+  private final List<FileProgress> files = new ArrayList<>();
+
+  private final long startTime = System.currentTimeMillis();
+
+  private volatile long endTime = 0;
+
+  public synchronized Collection<FileProgress> getFiles() {
+    return new ArrayList<>(files);
+  }
+
+  /**
+   * Get the count of bytes read from all the submitted files.
+   *
+   * @return
+   */
+  public synchronized long getBytes() {
+    return files.stream().mapToLong(FileProgress::getBytes).sum();
+  }
+
+  public synchronized long getCompletedCount() {
+    return files.stream().filter(file -> Stage.DONE == file.getStage()).count();
+  }
+
+  public synchronized long getFailedCount() {
+    return files.stream().filter(file -> Stage.FAILED == file.getStage()).count();
+  }
+
+  public boolean isFinished() {
+    return endTime > 0;
+  }
+
+  /**
+   * Get the aggregated throughput, in bytes per second of submitted data fully processed or being processed.
+   *
+   * @return
+   */
+  public long getThroughput() {
+    return throughput(getBytes(), startTime, endTime);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d/%d VCF files ingested (%d failed), %d bytes at %d bytes/s", getCompletedCount(), getFiles().size(),
+        getFailedCount(), getBytes(), getThroughput());
+  }
+
+  synchronized FileProgress add(String name) {
+    FileProgress file = new FileProgress(name);
+    files.add(file);
+    return file;
+  }
+
+  void finish() {
+    endTime = System.currentTimeMillis();
+  }
+
+  private static long throughput(long bytes, long start, long end) {
+    if (start == 0) return 0;
+    long duration = (end > 0 ? end : System.currentTimeMillis()) - start;
+    return duration <= 0 ? bytes : bytes * 1000 / duration;
+  }
+
+  /**
+   * Progress of the ingestion of one VCF/BCF file.
+   */
+  public static class FileProgress {
+
+    private final String name;
+
+    private volatile Stage stage = Stage.QUEUED;
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private volatile long startTime = 0;
+
+    private volatile long endTime = 0;
+
+    private volatile String error;
+
+    private FileProgress(String name) {
+      this.name = name;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public Stage getStage() {
+      return stage;
+    }
+
+    public long getBytes() {
+      return bytes.get();
+    }
+
+    public long getThroughput() {
+      return throughput(getBytes(), startTime, endTime);
+    }
+
+    public String getError() {
+      return error;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s [%s] %d bytes at %d bytes/s", name, stage, getBytes(), getThroughput());
+    }
+
+    void stage(Stage stage) {
+      if (startTime == 0) startTime = System.currentTimeMillis();
+      this.stage = stage;
+      if (Stage.DONE == stage || Stage.FAILED == stage) endTime = System.currentTimeMillis();
+    }
+
+    void failed(Throwable e) {
+      this.error = e.getMessage();
+      stage(Stage.FAILED);
+    }
+
+    /**
+     * Count the bytes read from the submitted data.
+     *
+     * @param in
+     * @return
+     */
+    InputStream track(InputStream in) {
+      return new FilterInputStream(in) {
+        @Override
+        public int read() throws IOException {
+          int b = super.read();
+          if (b >= 0) bytes.incrementAndGet();
+          return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          int n = super.read(b, off, len);
+          if (n > 0) bytes.addAndGet(n);
+          return n;
+        }
+      };
+    }
+  }
+}
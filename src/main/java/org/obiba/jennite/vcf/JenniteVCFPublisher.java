@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.jennite.vcf;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Publishes the data written by an export as chunks of bytes. Each subscriber gets its own export, run by the
+ * provided executor (usually virtual threads): the export is suspended while the subscriber has no demand, so that
+ * at most one chunk is buffered per subscriber. The export is registered as a running one only while it is not
+ * suspended.
+ */
+class JenniteVCFPublisher implements Flow.Publisher<ByteBuffer> {
+
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  private final Export export;
+
+  private final Executor executor;
+
+  private final Supplier<JenniteVCFIOScheduler.Registration> registrations;
+
+  JenniteVCFPublisher(Export export, Executor executor) {
+    this(export, executor, () -> () -> {});
+  }
+
+  /**
+   * @param export
+   * @param executor
+   * @param registrations registers the export as a running one, until the registration is closed
+   */
+  JenniteVCFPublisher(Export export, Executor executor, Supplier<JenniteVCFIOScheduler.Registration> registrations) {
+    this.export = export;
+    this.executor = executor;
+    this.registrations = registrations;
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+    Objects.requireNonNull(subscriber);
+    ExportSubscription subscription = new ExportSubscription(subscriber);
+    subscriber.onSubscribe(subscription);
+    try {
+      executor.execute(subscription::run);
+    } catch (RejectedExecutionException e) {
+      subscription.cancel();
+      subscriber.onError(e);
+    }
+  }
+
+  /**
+   * Writes the exported data to a stream.
+   */
+  interface Export {
+    void write(OutputStream out) throws IOException;
+  }
+
+  /**
+   * The stream the export writes to: data are sent to the subscriber by chunks, when requested.
+   */
+  private class ExportSubscription extends OutputStream implements Flow.Subscription {
+
+    private final Flow.Subscriber<? super ByteBuffer> subscriber;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition demanded = lock.newCondition();
+
+    private long demand = 0;
+
+    private boolean cancelled = false;
+
+    private volatile IllegalArgumentException invalidRequest;
+
+    private byte[] buffer = new byte[CHUNK_SIZE];
+
+    private int count = 0;
+
+    private JenniteVCFIOScheduler.Registration registration;
+
+    private ExportSubscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+      this.subscriber = subscriber;
+    }
+
+    @Override
+    public void request(long n) {
+      lock.lock();
+      try {
+        if (n <= 0) invalidRequest = new IllegalArgumentException("Requested chunks count must be positive: " + n);
+        else demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+        demanded.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public void cancel() {
+      lock.lock();
+      try {
+        cancelled = true;
+        demanded.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      buffer[count++] = (byte) b;
+      if (count == buffer.length) emit();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        int n = Math.min(len, buffer.length - count);
+        System.arraycopy(b, off, buffer, count, n);
+        count += n;
+        off += n;
+        len -= n;
+        if (count == buffer.length) emit();
+      }
+    }
+
+    private void run() {
+      registration = registrations.get();
+      try {
+        export.write(this);
+        emit();
+        if (!isCancelled()) subscriber.onComplete();
+      } catch (Throwable e) {
+        if (invalidRequest != null) subscriber.onError(invalidRequest);
+        else if (!isCancelled()) subscriber.onError(e);
+      } finally {
+        registration.close();
+      }
+    }
+
+    /**
+     * Send the buffered data as soon as the subscriber requests it.
+     *
+     * @throws IOException if the subscription was cancelled
+     */
+    private void emit() throws IOException {
+      if (count == 0) return;
+      lock.lock();
+      try {
+        if (demand == 0 && !cancelled && invalidRequest == null) {
+          // suspended export is not a running one
+          registration.close();
+          try {
+            while (demand == 0 && !cancelled && invalidRequest == null) demanded.await();
+          } finally {
+            registration = registrations.get();
+          }
+        }
+        if (cancelled || invalidRequest != null) throw new IOException("VCF export subscription was cancelled");
+        if (demand != Long.MAX_VALUE) demand--;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("VCF export was interrupted");
+      } finally {
+        lock.unlock();
+      }
+      ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, count);
+      buffer = new byte[CHUNK_SIZE];
+      count = 0;
+      subscriber.onNext(chunk);
+    }
+
+    private boolean isCancelled() {
+      lock.lock();
+      try {
+        return cancelled;
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+}
@@ -18,10 +18,31 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.text.SimpleDateFormat;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 /**
  * All VCF files of the store are in a dedicated directory.
@@ -30,8 +51,6 @@ public class JenniteVCFStore implements VCFStore {
 
   private static final Logger log = LoggerFactory.getLogger(JenniteVCFStore.class);
 
-  private static final SimpleDateFormat dateTimeFormatter = new SimpleDateFormat("yyyyMMdd_HHmmss");
-
   private static final String VCF_FILE = "data.vcf";
 
   private static final String BCF_FILE = "data.bcf";
@@ -52,13 +71,24 @@ public class JenniteVCFStore implements VCFStore {
 
   private static final String EXEC_LOG = "exec.log";
 
+  private static final String DELTAS_FOLDER = "deltas";
+
+  private static final String DELTA_PROPERTIES_FILE = "delta.properties";
+
+  private static final String QUARANTINE_FOLDER = "quarantine";
+
+  private static final Pattern NUMBER_PATTERN = Pattern.compile("\\d+");
+
   private final String name;
 
   private final Properties properties;
 
-  public JenniteVCFStore(String name, Properties properties) {
+  private final JenniteVCFStoreService service;
+
+  public JenniteVCFStore(String name, JenniteVCFStoreService service) {
     this.name = name;
-    this.properties = properties;
+    this.service = service;
+    this.properties = service.getProperties();
   }
 
   @Override
@@ -66,204 +96,1405 @@ public class JenniteVCFStore implements VCFStore {
     return name;
   }
 
-  @Override
-  public Collection<String> getSampleIds() {
-    Set<String> sampleIds = new LinkedHashSet<>();
-    getVCFNames().forEach(name -> {
-      File samplesFile = getSamplesFile(name);
-      if (samplesFile.exists()) {
-        try (Stream<String> stream = Files.lines(samplesFile.toPath())) {
-          stream.forEach(line -> sampleIds.add(line));
-        } catch (IOException e) {
-          log.warn("Failure when reading samples list: " + samplesFile.getAbsolutePath(), e);
-        }
-      }
-    });
-    return sampleIds;
+  @Override
+  public Collection<String> getSampleIds() {
+    Set<String> sampleIds = new LinkedHashSet<>();
+    getVCFNames().forEach(name -> {
+      File samplesFile = getSamplesFile(name);
+      if (samplesFile.exists()) {
+        try (Stream<String> stream = Files.lines(samplesFile.toPath())) {
+          stream.forEach(line -> sampleIds.add(line));
+        } catch (IOException e) {
+          log.warn("Failure when reading samples list: " + samplesFile.getAbsolutePath(), e);
+        }
+      }
+    });
+    return sampleIds;
+  }
+
+  @Override
+  public Collection<String> getVCFNames() {
+    List<String> names = new ArrayList<>();
+    File directory = new File(properties.getProperty("data.dir"), name);
+    File[] children = directory.listFiles(File::isDirectory);
+    if (children == null) return names;
+    for (File child : children) {
+      // a new VCF could be in treatment, so report only the ones with properties ready
+      File propFile = getVCFPropertiesFile(child.getName());
+      if (propFile.exists()) names.add(child.getName());
+    }
+    return names;
+  }
+
+  @Override
+  public boolean hasVCF(String vcfName) {
+    return getVCFGZFile(vcfName).exists();
+  }
+
+  @Override
+  public VCFSummary getVCFSummary(String vcfName) throws NoSuchElementException {
+    if (!hasVCF(vcfName)) throw new NoSuchElementException("No VCF with name '" + vcfName + "' can be found");
+    return JenniteVCFSummary.newSummary(vcfName).properties(getVCFPropertiesFile(vcfName)).samples(getSamplesFile(vcfName)).build();
+  }
+
+  /**
+   * Prepare VCF folder and write VCF/BCF file, compress it if necessary and index it (requires VCF/BCF to be sorted).
+   *
+   * @param vcfName
+   * @param vcf
+   * @throws IOException
+   */
+  @Override
+  public void writeVCF(String vcfName, InputStream vcf) throws IOException {
+    write(vcfName, vcf, new JenniteVCFIngestProgress().add(vcfName));
+  }
+
+  /**
+   * Write several VCF/BCF files concurrently, within the limits of the service ingestion threads and concurrent
+   * copies. Files that could not be written are reported by the progress and by the exception thrown when all the
+   * other files have been written.
+   *
+   * @param vcfs VCF/BCF data streams by file name
+   * @param progress per-file and aggregated ingestion progress
+   * @throws IllegalArgumentException if several files would be written as the same VCF
+   * @throws IOException
+   */
+  public void writeVCFs(Map<String, InputStream> vcfs, JenniteVCFIngestProgress progress) throws IOException {
+    Map<String, VCFSource> sources = new LinkedHashMap<>();
+    vcfs.forEach((vcfName, vcf) -> sources.put(vcfName, () -> vcf));
+    write(sources, progress);
+  }
+
+  /**
+   * Write concurrently all the VCF/BCF files (with .vcf, .vcf.gz, .bcf or .bcf.gz extension) found in a directory
+   * or in a zip archive.
+   *
+   * @param source directory or zip file
+   * @param progress per-file and aggregated ingestion progress
+   * @throws IllegalArgumentException if several files would be written as the same VCF
+   * @throws IOException
+   */
+  public void writeVCFs(File source, JenniteVCFIngestProgress progress) throws IOException {
+    Map<String, VCFSource> sources = new TreeMap<>();
+    if (source.isDirectory()) {
+      File[] children = source.listFiles(child -> child.isFile() && isVCFFileName(child.getName()));
+      if (children != null) {
+        for (File child : children) sources.put(child.getName(), () -> new FileInputStream(child));
+      }
+      write(sources, progress);
+    } else {
+      try (ZipFile zipFile = new ZipFile(source)) {
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+          ZipEntry entry = entries.nextElement();
+          String entryName = new File(entry.getName()).getName();
+          if (entry.isDirectory() || !isVCFFileName(entryName)) continue;
+          if (sources.containsKey(entryName))
+            throw new IllegalArgumentException("Several VCF/BCF files are named '" + entryName + "' in: " + source.getName());
+          sources.put(entryName, () -> zipFile.getInputStream(entry));
+        }
+        write(sources, progress);
+      }
+    }
+  }
+
+  /**
+   * Append VCF/BCF records or samples to an existing VCF without re-processing it: the appended data are compressed,
+   * indexed and summarized in a delta segment, the VCF samples list and properties counts are updated, and the delta
+   * segments are merged into the VCF data file in the background. If the appended data have the same samples as the
+   * VCF, these are new records (an appended record only replaces an existing one that has the same position, REF and ALT
+   * alleles); if they have only new samples, these are new samples for the existing records. The delta segment is
+   * prepared without locking the VCF, which is only locked while the delta segment is added to it.
+   *
+   * @param vcfName
+   * @param vcf
+   * @throws NoSuchElementException
+   * @throws IOException
+   */
+  public void appendVCF(String vcfName, InputStream vcf) throws NoSuchElementException, IOException {
+    VCFFileName fileName = VCFFileName.parse(vcfName);
+    String store = fileName.name();
+    Format format = fileName.format();
+    if (!hasVCF(store)) throw new NoSuchElementException("No VCF with name '" + store + "' can be found");
+
+    // delta segment is prepared in the data directory, so that it can then be moved in the VCF folder
+    File stagingFolder = service.newSnapshotFolder();
+    try {
+      File destination = new File(stagingFolder, fileName.compressed() ? getVCFGZFile(store, format).getName() : (Format.VCF == format ? VCF_FILE : BCF_FILE));
+      copy(vcf, destination);
+
+      if (!fileName.compressed()) compress(store, destination);
+      File dataFile = new File(stagingFolder, getVCFGZFile(store, format).getName());
+      index(store, dataFile, format);
+      listSamples(store, dataFile, new File(stagingFolder, SAMPLES_FILE));
+      statistics(store, dataFile, new File(stagingFolder, STATS_FILE));
+      VCFSummary delta = getDeltaSummary(stagingFolder);
+
+      Lock lock = service.getLock(name, store).writeLock();
+      lock.lock();
+      try {
+        if (!hasVCF(store)) throw new NoSuchElementException("No VCF with name '" + store + "' can be found");
+        // appended records or appended samples
+        List<String> sampleIds = new ArrayList<>(getVCFSummary(store).getSampleIds());
+        List<String> newSampleIds = new ArrayList<>(delta.getSampleIds());
+        DeltaMode mode;
+        if (sampleIds.equals(newSampleIds)) mode = DeltaMode.RECORDS;
+        else if (Collections.disjoint(sampleIds, newSampleIds)) mode = DeltaMode.SAMPLES;
+        else throw new VCFStoreException("Appended VCF/BCF file must have either the same samples as VCF '" + store + "' or only new samples");
+
+        deltaProperties(stagingFolder, mode, vcfName);
+        File deltaFolder = newDeltaFolder(store);
+        Files.move(stagingFolder.toPath(), deltaFolder.toPath());
+        try {
+          applyDelta(store, mode, delta);
+        } catch (IOException | RuntimeException e) {
+          FileUtil.delete(deltaFolder);
+          throw e;
+        }
+        service.getGenotypeCache().invalidate(name + File.separator + store);
+      } finally {
+        lock.unlock();
+      }
+    } finally {
+      if (stagingFolder.exists()) FileUtil.delete(stagingFolder);
+    }
+    scheduleCompaction(store);
+  }
+
+  @Override
+  public void deleteVCF(String vcfName) {
+    File store = getVCFFolder(vcfName);
+    if (!store.exists()) return;
+    Lock lock = service.getLock(name, vcfName).writeLock();
+    lock.lock();
+    try {
+      service.getGenotypeCache().invalidate(name + File.separator + vcfName);
+      FileUtil.delete(store);
+    } catch (IOException e) {
+      // ignore
+    } finally {
+      lock.unlock();
+    }
+    service.pruneBlobs();
+  }
+
+  @Override
+  public void readVCF(String vcfName, OutputStream out) throws NoSuchElementException, IOException {
+    readVCF(vcfName, getFormat(vcfName), out);
+  }
+
+  @Override
+  public void readVCF(String vcfName, Format format, OutputStream out) throws NoSuchElementException, IOException {
+    if (!hasVCF(vcfName)) throw new NoSuchElementException("No VCF with name '" + vcfName + "' can be found");
+    try (JenniteVCFIOScheduler.Registration export = service.getIOScheduler().foreground();
+         Snapshot snapshot = snapshot(vcfName, true)) {
+      copy(snapshot, format, out);
+    }
+  }
+
+  @Override
+  public void readVCF(String vcfName, OutputStream out, Collection<String> samples) throws NoSuchElementException, IOException {
+    readVCF(vcfName, getFormat(vcfName), out, samples);
+  }
+
+  @Override
+  public void readVCF(String vcfName, Format format, OutputStream out, Collection<String> samples) throws NoSuchElementException, IOException {
+    if (!hasVCF(vcfName)) throw new NoSuchElementException("No VCF with name '" + vcfName + "' can be found");
+    try (JenniteVCFIOScheduler.Registration export = service.getIOScheduler().foreground();
+         Snapshot snapshot = snapshot(vcfName, true)) {
+      if (samples == null || samples.isEmpty()) {
+        copy(snapshot, format, out);
+        return;
+      }
+      try (JenniteVCFWorkArea.WorkFile samplesFile = newWorkFile(vcfName, "samples_", ".txt");
+           JenniteVCFWorkArea.WorkFile outputFile = newWorkFile(vcfName, "data_", "." + format.name().toLowerCase() + ".gz")) {
+        writeSamples(samplesFile.getFile(), samples);
+        subset(snapshot, samplesFile.getFile(), format, outputFile.getFile());
+
+        export(outputFile.getFile(), out);
+      }
+    }
+  }
+
+  /**
+   * Export several VCF/BCF files of the store as a single compressed file: the VCF files are subset by samples
+   * concurrently and then concatenated, in the order of the VCF names. Once the samples subset is applied, all
+   * the VCF files must have the same samples, in the same order. The VCF files are read from snapshots, so that they
+   * are not locked during the export. The concatenation is written to a work file before being exported, so that
+   * incompatible files (such as a chromosome split over non adjacent VCFs) fail the export before any data is sent.
+   *
+   * @param vcfNames VCF names in the concatenation order, all the VCFs of the store (in natural name order) if null or empty
+   * @param format
+   * @param out
+   * @param samples samples subset, all the samples if null or empty
+   * @throws NoSuchElementException
+   * @throws IOException
+   */
+  public void readVCFs(List<String> vcfNames, Format format, OutputStream out, Collection<String> samples) throws NoSuchElementException, IOException {
+    List<String> names = vcfNames == null || vcfNames.isEmpty() ? getSortedVCFNames() : vcfNames;
+    if (names.isEmpty()) throw new NoSuchElementException("No VCF can be found in store '" + name + "'");
+    for (String vcfName : names) {
+      if (!hasVCF(vcfName)) throw new NoSuchElementException("No VCF with name '" + vcfName + "' can be found");
+    }
+    if (names.size() == 1) {
+      readVCF(names.get(0), format, out, samples);
+      return;
+    }
+    List<Snapshot> snapshots = new ArrayList<>();
+    List<JenniteVCFWorkArea.WorkFile> workFiles = new ArrayList<>();
+    try (JenniteVCFIOScheduler.Registration export = service.getIOScheduler().foreground()) {
+      for (String vcfName : names) snapshots.add(snapshot(vcfName, true));
+      Map<String, List<String>> vcfSamples = new LinkedHashMap<>();
+      snapshots.forEach(snapshot -> vcfSamples.put(snapshot.getVCFName(), snapshot.getSampleIds()));
+      checkSamplesCompatibility(vcfSamples, samples);
+
+      List<File> inputs = subset(snapshots, samples, workFiles);
+
+      JenniteVCFWorkArea.WorkFile outputFile = service.getWorkArea().newFile(name, "data_", "." + format.name().toLowerCase() + ".gz");
+      workFiles.add(outputFile);
+      List<String> args = new ArrayList<>(Arrays.asList("concat",
+          "--output-type", Format.VCF == format ? "z" : "b",
+          "--output-file", outputFile.getFile().getAbsolutePath()));
+      inputs.forEach(input -> args.add(input.getAbsolutePath()));
+      int status = runProcess(bcftools(args.toArray(new String[0])), JenniteVCFStore::discard);
+      if (status != 0) throw new VCFStoreException("VCF/BCF files concatenation using bcftools failed.");
+
+      export(outputFile.getFile(), out);
+    } finally {
+      workFiles.forEach(JenniteVCFWorkArea.WorkFile::close);
+      snapshots.forEach(Snapshot::close);
+    }
+  }
+
+  /**
+   * Export a VCF as a publisher of compressed VCF/BCF data chunks. Each subscriber triggers an export, that runs on a
+   * virtual thread and that is suspended while the subscriber does not request more data, so that many slow clients
+   * can be served by few threads and with one buffered chunk each. Format conversion and samples subset output is
+   * streamed as it is produced by bcftools. The VCF is read from a snapshot, so that a slow subscriber does not hold
+   * the VCF lock and block its updates, and the export is not reported as running to the I/O scheduler while it waits
+   * for the subscriber's demand.
+   *
+   * @param vcfName
+   * @param format the VCF format if null
+   * @param samples samples subset, all the samples if null or empty
+   * @return
+   * @throws NoSuchElementException
+   */
+  public Flow.Publisher<ByteBuffer> publishVCF(String vcfName, Format format, Collection<String> samples) throws NoSuchElementException {
+    if (!hasVCF(vcfName)) throw new NoSuchElementException("No VCF with name '" + vcfName + "' can be found");
+    Format outputFormat = format == null ? getFormat(vcfName) : format;
+    JenniteVCFIOScheduler ioScheduler = service.getIOScheduler();
+    return new JenniteVCFPublisher(out -> stream(vcfName, outputFormat, samples, out), service.getExportExecutor(), ioScheduler::foreground);
+  }
+
+  /**
+   * Get the genotypes (and the dosages, if any) of some samples at some positions of a VCF. The positions that are not
+   * in the genotypes cache are queried in one batch with bcftools, which uses the VCF index to decompress only the
+   * blocks holding these positions and decodes only the requested samples. The VCF stays locked while it is queried,
+   * so that the cached genotypes are the ones of its current data.
+   *
+   * @param vcfName
+   * @param samples the matrix columns
+   * @param positions the matrix rows, as chromosome:position (1-based)
+   * @return
+   * @throws NoSuchElementException
+   * @throws IOException
+   */
+  public JenniteVCFGenotypes readGenotypes(String vcfName, List<String> samples, List<String> positions) throws NoSuchElementException, IOException {
+    if (!hasVCF(vcfName)) throw new NoSuchElementException("No VCF with name '" + vcfName + "' can be found");
+    List<String> sampleIds = List.copyOf(new LinkedHashSet<>(samples));
+    List<String> rowPositions = positions.stream().map(JenniteVCFStore::normalizePosition).collect(Collectors.toList());
+    String cacheKey = name + File.separator + vcfName;
+    JenniteVCFGenotypeCache cache = service.getGenotypeCache();
+    try (JenniteVCFIOScheduler.Registration export = service.getIOScheduler().foreground();
+         Snapshot snapshot = snapshot(vcfName, false)) {
+      Map<String, JenniteVCFGenotypeCache.Row> rows = new HashMap<>();
+      Set<String> queried = new LinkedHashSet<>();
+      for (String position : rowPositions) {
+        JenniteVCFGenotypeCache.Row row = cache.get(cacheKey, sampleIds, position);
+        if (row == null) queried.add(position);
+        else rows.put(position, row);
+      }
+      if (!queried.isEmpty() && !sampleIds.isEmpty()) {
+        queryGenotypes(snapshot, sampleIds, queried).forEach((position, row) -> {
+          cache.put(cacheKey, sampleIds, position, row);
+          rows.put(position, row);
+        });
+      }
+      return newGenotypes(sampleIds, rowPositions, rows);
+    }
+  }
+
+  @Override
+  public void readVCFStatistics(String vcfName, OutputStream out) throws NoSuchElementException, IOException {
+    if (!hasVCF(vcfName)) throw new NoSuchElementException("No VCF with name '" + vcfName + "' can be found");
+    // the opened file can still be read if the VCF is modified meanwhile
+    InputStream in;
+    Lock lock = service.getLock(name, vcfName).readLock();
+    lock.lock();
+    try {
+      in = new FileInputStream(getStatsFile(vcfName));
+    } finally {
+      lock.unlock();
+    }
+    try (JenniteVCFIOScheduler.Registration export = service.getIOScheduler().foreground()) {
+      export(in, out);
+    }
+  }
+
+  //
+  // Private methods
+  //
+
+  /**
+   * Prepare VCF folder and write VCF/BCF file, compress it if necessary and index it (requires VCF/BCF to be sorted).
+   *
+   * @param vcfName
+   * @param vcf
+   * @param progress
+   * @throws IOException
+   */
+  private void write(String vcfName, InputStream vcf, JenniteVCFIngestProgress.FileProgress progress) throws IOException {
+    // writing a VCF is making a directory with the compressed and indexed VCF file
+    VCFFileName fileName = VCFFileName.parse(vcfName);
+    String store = fileName.name();
+    Format format = fileName.format();
+
+    Lock lock = service.getLock(name, store).writeLock();
+    lock.lock();
+    boolean replaced = false;
+    try {
+      // write data file, replacing anything that could be found at the VCF folder location
+      File vcfFolder = getVCFFolder(store);
+      replaced = vcfFolder.exists();
+      if (replaced) FileUtil.delete(vcfFolder);
+      vcfFolder.mkdirs();
+      File destination = fileName.compressed() ? getVCFGZFile(store, format) : new File(getVCFFolder(store), format.equals(Format.VCF) ? VCF_FILE : BCF_FILE);
+      progress.stage(JenniteVCFIngestProgress.Stage.COPY);
+      MessageDigest digest = newDigest();
+      copy(digest == null ? progress.track(vcf) : new DigestInputStream(progress.track(vcf), digest), destination);
+
+      // identical submitted content was already processed
+      String blobName = digest == null ? null : HexFormat.of().formatHex(digest.digest()) + "." + fileName.extension();
+      if (blobName != null && linkBlob(store, blobName, format, destination)) {
+        properties(store, vcfName);
+        service.getGenotypeCache().invalidate(name + File.separator + store);
+        progress.stage(JenniteVCFIngestProgress.Stage.DONE);
+        return;
+      }
+
+      if (!fileName.compressed()) {
+        progress.stage(JenniteVCFIngestProgress.Stage.COMPRESS);
+        compress(store, destination);
+      }
+      File dataFile = getVCFGZFile(store);
+      progress.stage(JenniteVCFIngestProgress.Stage.INDEX);
+      index(store, dataFile, format);
+      progress.stage(JenniteVCFIngestProgress.Stage.SAMPLES);
+      listSamples(store, dataFile, getSamplesFile(store));
+      progress.stage(JenniteVCFIngestProgress.Stage.STATISTICS);
+      statistics(store, dataFile, getStatsFile(store));
+      properties(store, vcfName);
+      if (blobName != null) publishBlob(store, blobName, format);
+      service.getGenotypeCache().invalidate(name + File.separator + store);
+      progress.stage(JenniteVCFIngestProgress.Stage.DONE);
+    } catch (IOException | RuntimeException e) {
+      progress.failed(e);
+      throw e;
+    } finally {
+      lock.unlock();
+      if (replaced) service.pruneBlobs();
+    }
+  }
+
+  /**
+   * Replace the submitted data file by links to the processed files of a previously submitted identical content, if any.
+   *
+   * @param vcfName
+   * @param blobName
+   * @param format
+   * @param destination the submitted data file
+   * @return Whether the processed files could be linked
+   * @throws IOException
+   */
+  private boolean linkBlob(String vcfName, String blobName, Format format, File destination) throws IOException {
+    Lock lock = service.getBlobsLock().readLock();
+    lock.lock();
+    try {
+      File blob = new File(service.getBlobsFolder(), blobName);
+      List<String> fileNames = getBlobFileNames(format);
+      if (!fileNames.stream().allMatch(fileName -> new File(blob, fileName).exists())) return false;
+      // submitted data file is kept until all the processed files are linked
+      File vcfFolder = getVCFFolder(vcfName);
+      Map<File, File> links = new LinkedHashMap<>();
+      try {
+        for (String fileName : fileNames) {
+          File link = new File(vcfFolder, fileName + ".blob");
+          Files.createLink(link.toPath(), new File(blob, fileName).toPath());
+          links.put(link, new File(vcfFolder, fileName));
+        }
+      } catch (UnsupportedOperationException | IOException e) {
+        log.debug("Cannot link blob {} files, VCF '{}' will be processed", blobName, vcfName);
+        links.keySet().forEach(File::delete);
+        return false;
+      }
+      Files.delete(destination.toPath());
+      for (Map.Entry<File, File> link : links.entrySet()) Files.move(link.getKey().toPath(), link.getValue().toPath());
+      log.info("VCF '{}' has the same content as blob {}, processing skipped", vcfName, blobName);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Share the processed files of a VCF, so that a later submission of the same content can link them. Nothing is
+   * shared if the files cannot be hard linked, as copies would use more space than the processing saves.
+   *
+   * @param vcfName
+   * @param blobName
+   * @param format
+   */
+  private void publishBlob(String vcfName, String blobName, Format format) {
+    Lock lock = service.getBlobsLock().readLock();
+    lock.lock();
+    try {
+      File blobsFolder = service.getBlobsFolder();
+      File blob = new File(blobsFolder, blobName);
+      if (blob.exists()) return;
+      File tmpBlob = Files.createTempDirectory(blobsFolder.toPath(), "." + blobName).toFile();
+      try {
+        for (String fileName : getBlobFileNames(format))
+          Files.createLink(new File(tmpBlob, fileName).toPath(), new File(getVCFFolder(vcfName), fileName).toPath());
+        Files.move(tmpBlob.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (UnsupportedOperationException | IOException e) {
+        // files cannot be linked, or were published concurrently
+        log.debug("VCF '{}' processed files are not shared", vcfName);
+        FileUtil.delete(tmpBlob);
+      }
+    } catch (IOException e) {
+      log.warn("Failure when sharing VCF '{}' processed files", vcfName, e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private List<String> getBlobFileNames(Format format) {
+    return Format.VCF == format ?
+        Arrays.asList(VCF_GZ_FILE, VCF_GZ_INDEX, SAMPLES_FILE, STATS_FILE) :
+        Arrays.asList(BCF_GZ_FILE, BCF_GZ_INDEX, SAMPLES_FILE, STATS_FILE);
+  }
+
+  /**
+   * Replace a file by a copy of it, so that modifying it does not affect its other links.
+   *
+   * @param file
+   * @throws IOException
+   */
+  private void unlink(File file) throws IOException {
+    File copy = new File(file.getParentFile(), file.getName() + ".tmp");
+    Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    Files.move(copy.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Get the digest of the submitted content, if identical contents are to be shared.
+   *
+   * @return null if content sharing is disabled
+   */
+  private MessageDigest newDigest() {
+    if (!Boolean.parseBoolean(properties.getProperty("dedup", "true").trim())) return null;
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      log.warn("Content digest not available, VCF files will not be shared", e);
+      return null;
+    }
+  }
+
+  /**
+   * Write the VCF/BCF files concurrently and wait for all of them to be processed.
+   *
+   * @param sources
+   * @param progress
+   * @throws IOException
+   */
+  private void write(Map<String, VCFSource> sources, JenniteVCFIngestProgress progress) throws IOException {
+    // files written as the same VCF would overwrite each other
+    Map<String, List<String>> fileNamesByVCF = new TreeMap<>();
+    sources.keySet().forEach(fileName -> fileNamesByVCF.computeIfAbsent(VCFFileName.parse(fileName).name(), key -> new ArrayList<>()).add(fileName));
+    for (Map.Entry<String, List<String>> fileNames : fileNamesByVCF.entrySet()) {
+      if (fileNames.getValue().size() > 1)
+        throw new IllegalArgumentException("Several VCF/BCF files would be written as VCF '" + fileNames.getKey() + "': " + String.join(", ", fileNames.getValue()));
+    }
+
+    Map<Future<?>, JenniteVCFIngestProgress.FileProgress> futures = new LinkedHashMap<>();
+    for (Map.Entry<String, VCFSource> source : sources.entrySet()) {
+      JenniteVCFIngestProgress.FileProgress fileProgress = progress.add(source.getKey());
+      futures.put(service.getIngestExecutor().submit(() -> {
+        try (InputStream vcf = source.getValue().open()) {
+          write(source.getKey(), vcf, fileProgress);
+        } catch (Throwable e) {
+          if (JenniteVCFIngestProgress.Stage.FAILED != fileProgress.getStage()) fileProgress.failed(e);
+          log.error("VCF/BCF file ingestion failed: {}", source.getKey(), e);
+          if (e instanceof Error) throw (Error) e;
+        }
+        log.info("{}", fileProgress);
+      }), fileProgress);
+    }
+    try {
+      for (Map.Entry<Future<?>, JenniteVCFIngestProgress.FileProgress> future : futures.entrySet()) {
+        try {
+          future.getKey().get();
+        } catch (ExecutionException e) {
+          // failures are reported by the file progress
+          if (JenniteVCFIngestProgress.Stage.FAILED != future.getValue().getStage()) future.getValue().failed(e.getCause());
+        }
+      }
+    } catch (InterruptedException e) {
+      futures.keySet().forEach(future -> future.cancel(true));
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("VCF/BCF files ingestion was interrupted");
+    } finally {
+      progress.finish();
+    }
+    log.info("{}", progress);
+    List<String> failed = progress.getFiles().stream()
+        .filter(file -> JenniteVCFIngestProgress.Stage.FAILED == file.getStage())
+        .map(JenniteVCFIngestProgress.FileProgress::getName).collect(Collectors.toList());
+    if (!failed.isEmpty()) throw new VCFStoreException("VCF/BCF files ingestion failed: " + String.join(", ", failed));
+  }
+
+  /**
+   * Copy the submitted data to the VCF data file, within the limit of the concurrent copies of the service.
+   *
+   * @param vcf
+   * @param destination
+   * @throws IOException
+   */
+  private void copy(InputStream vcf, File destination) throws IOException {
+    Semaphore permits = service.getCopyPermits();
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("VCF/BCF file copy was interrupted");
+    }
+    try {
+      Files.copy(service.getIOScheduler().throttle(vcf, JenniteVCFIOScheduler.IOClass.BACKGROUND), destination.toPath());
+    } finally {
+      permits.release();
+    }
+  }
+
+  /**
+   * Copy a file to the export stream, as a foreground transfer.
+   *
+   * @param file
+   * @param out
+   * @throws IOException
+   */
+  private void export(File file, OutputStream out) throws IOException {
+    export(new FileInputStream(file), out);
+  }
+
+  /**
+   * Copy a data stream to the export stream, as a foreground transfer, and close it.
+   *
+   * @param in
+   * @param out
+   * @throws IOException
+   */
+  private void export(InputStream in, OutputStream out) throws IOException {
+    try (InputStream data = in) {
+      service.getIOScheduler().transfer(data, out, JenniteVCFIOScheduler.IOClass.FOREGROUND);
+    }
+    log.debug("VCF store I/O throughput: {}", service.getIOScheduler());
+  }
+
+  static boolean isVCFFileName(String fileName) {
+    return fileName.endsWith(".vcf") || fileName.endsWith(".vcf.gz") || fileName.endsWith(".bcf") || fileName.endsWith(".bcf.gz");
+  }
+
+  /**
+   * Copy the VCF/BCF compressed file, converting it if the requested format is not the one of the VCF or if it has
+   * pending delta segments.
+   *
+   * @param snapshot
+   * @param format
+   * @param out
+   * @throws IOException
+   */
+  private void copy(Snapshot snapshot, Format format, OutputStream out) throws IOException {
+    if (snapshot.getDeltas().isEmpty() && snapshot.getFormat() == format)
+      export(snapshot.getDataFile(), out);
+    else {
+      // need to convert VCF format flavour or to merge the delta segments
+      try (JenniteVCFWorkArea.WorkFile outputFile = newWorkFile(snapshot.getVCFName(), "data_", "." + format.name().toLowerCase() + ".gz")) {
+        subset(snapshot, null, format, outputFile.getFile());
+
+        export(outputFile.getFile(), out);
+      }
+    }
+  }
+
+  /**
+   * Write the VCF data to the stream, converting and subsetting it on the fly if needed.
+   *
+   * @param vcfName
+   * @param format
+   * @param samples
+   * @param out
+   * @throws IOException
+   */
+  private void stream(String vcfName, Format format, Collection<String> samples, OutputStream out) throws IOException {
+    try (Snapshot snapshot = snapshot(vcfName, true)) {
+      boolean subset = samples != null && !samples.isEmpty();
+      if (!subset && snapshot.getDeltas().isEmpty() && snapshot.getFormat() == format) {
+        export(snapshot.getDataFile(), out);
+        return;
+      }
+      List<String> args = new ArrayList<>(Arrays.asList("view", "--output-type", Format.VCF == format ? "z" : "b"));
+      try (JenniteVCFWorkArea.WorkFile samplesFile = subset ? newWorkFile(vcfName, "samples_", ".txt") : null) {
+        if (samplesFile != null) {
+          writeSamples(samplesFile.getFile(), samples);
+          args.addAll(Arrays.asList("--samples-file", samplesFile.getFile().getAbsolutePath(), "--force-samples"));
+        }
+        int status = runProcess(pipeline(snapshot, args.toArray(new String[0])), out);
+        if (status != 0) throw new VCFStoreException("VCF/BCF file export using bcftools failed.");
+      }
+    }
+  }
+
+  /**
+   * Query the genotypes of the samples at the positions, using the VCF index if there are no pending delta segments to
+   * be merged. Positions that are not in the VCF have missing genotypes, and when several records are at the same
+   * position, the first one is reported.
+   *
+   * @param snapshot
+   * @param sampleIds
+   * @param positions
+   * @return The genotype rows by position
+   * @throws IOException
+   */
+  private Map<String, JenniteVCFGenotypeCache.Row> queryGenotypes(Snapshot snapshot, List<String> sampleIds, Set<String> positions) throws IOException {
+    String vcfName = snapshot.getVCFName();
+    int samplesCount = sampleIds.size();
+    int[] columns = getColumns(snapshot.getSampleIds(), sampleIds);
+    boolean withDosages = hasFormatField(snapshot, "DS");
+
+    Map<String, JenniteVCFGenotypeCache.Row> rows = new HashMap<>();
+    if (columns.length > 0) {
+      try (JenniteVCFWorkArea.WorkFile samplesFile = newWorkFile(vcfName, "samples_", ".txt");
+           JenniteVCFWorkArea.WorkFile regionsFile = newWorkFile(vcfName, "regions_", ".tsv")) {
+        // bcftools outputs the samples in the samples file order, so only the VCF ones are listed, in the VCF order
+        Set<String> requested = new HashSet<>(sampleIds);
+        writeSamples(samplesFile.getFile(), snapshot.getSampleIds().stream().filter(requested::contains).collect(Collectors.toList()));
+        writeRegions(regionsFile.getFile(), positions);
+        String format = "%CHROM\t%POS[\t%GT]" + (withDosages ? "[\t%DS]" : "") + "\n";
+        // merged delta segments are streamed, so the positions are looked up as targets instead of indexed regions
+        int status = runProcess(pipeline(snapshot, "query",
+            snapshot.getDeltas().isEmpty() ? "--regions-file" : "--targets-file", regionsFile.getFile().getAbsolutePath(),
+            "--samples-file", samplesFile.getFile().getAbsolutePath(),
+            "--format", format), in -> readLines(in, line -> {
+          String[] tokens = line.split("\t");
+          String position = tokens[0] + ":" + tokens[1];
+          // regions also match the records overlapping the position
+          if (!positions.contains(position) || rows.containsKey(position)) return;
+          rows.put(position, parseRow(tokens, columns, samplesCount, withDosages));
+        }));
+        if (status != 0) throw new VCFStoreException("VCF/BCF file genotypes query using bcftools failed.");
+      }
+    }
+    for (String position : positions) {
+      rows.computeIfAbsent(position, key -> {
+        byte[] genotypes = new byte[samplesCount];
+        Arrays.fill(genotypes, JenniteVCFGenotypes.MISSING);
+        return new JenniteVCFGenotypeCache.Row(genotypes, null);
+      });
+    }
+    return rows;
+  }
+
+  /**
+   * Map the samples output by bcftools, which are the requested ones that are in the VCF listed in the VCF samples order,
+   * to the requested samples order.
+   *
+   * @param vcfSampleIds the VCF samples, in the VCF order
+   * @param sampleIds the requested samples
+   * @return The index in the requested samples of each output sample
+   */
+  static int[] getColumns(List<String> vcfSampleIds, List<String> sampleIds) {
+    Map<String, Integer> sampleIndices = new HashMap<>();
+    for (int i = 0; i < sampleIds.size(); i++) sampleIndices.put(sampleIds.get(i), i);
+    return vcfSampleIds.stream().filter(sampleIndices::containsKey).mapToInt(sampleIndices::get).toArray();
+  }
+
+  /**
+   * Decode a genotypes query output line: chromosome, position, the GT of each output sample and then, if any, the DS
+   * of each output sample.
+   *
+   * @param tokens the tab separated values of the line
+   * @param columns the index in the requested samples of each output sample
+   * @param samplesCount the count of requested samples
+   * @param withDosages
+   * @return
+   */
+  static JenniteVCFGenotypeCache.Row parseRow(String[] tokens, int[] columns, int samplesCount, boolean withDosages) {
+    byte[] genotypes = new byte[samplesCount];
+    Arrays.fill(genotypes, JenniteVCFGenotypes.MISSING);
+    float[] dosages = withDosages ? new float[samplesCount] : null;
+    if (dosages != null) Arrays.fill(dosages, Float.NaN);
+    for (int k = 0; k < columns.length && 2 + k < tokens.length; k++) {
+      genotypes[columns[k]] = parseGenotype(tokens[2 + k]);
+      if (dosages != null && 2 + columns.length + k < tokens.length)
+        dosages[columns[k]] = parseDosage(tokens[2 + columns.length + k]);
+    }
+    return new JenniteVCFGenotypeCache.Row(genotypes, dosages);
+  }
+
+  /**
+   * Assemble the genotypes matrix from the rows of each position. Positions without a row have missing genotypes, and
+   * the dosages are provided if at least one row has some.
+   *
+   * @param sampleIds
+   * @param positions
+   * @param rows
+   * @return
+   */
+  static JenniteVCFGenotypes newGenotypes(List<String> sampleIds, List<String> positions, Map<String, JenniteVCFGenotypeCache.Row> rows) {
+    int samplesCount = sampleIds.size();
+    byte[] genotypes = new byte[positions.size() * samplesCount];
+    Arrays.fill(genotypes, JenniteVCFGenotypes.MISSING);
+    float[] dosages = rows.values().stream().anyMatch(row -> row.dosages() != null) ? new float[genotypes.length] : null;
+    if (dosages != null) Arrays.fill(dosages, Float.NaN);
+    for (int i = 0; i < positions.size(); i++) {
+      JenniteVCFGenotypeCache.Row row = rows.get(positions.get(i));
+      if (row == null) continue;
+      System.arraycopy(row.genotypes(), 0, genotypes, i * samplesCount, samplesCount);
+      if (dosages != null && row.dosages() != null) System.arraycopy(row.dosages(), 0, dosages, i * samplesCount, samplesCount);
+    }
+    return new JenniteVCFGenotypes(sampleIds, positions, genotypes, dosages);
+  }
+
+  /**
+   * Whether the header of the VCF data file, or of one of its delta segments, declares a FORMAT field.
+   *
+   * @param snapshot
+   * @param id
+   * @return
+   * @throws IOException
+   */
+  private boolean hasFormatField(Snapshot snapshot, String id) throws IOException {
+    String declaration = "##FORMAT=<ID=" + id + ",";
+    boolean[] found = {false};
+    for (File dataFile : snapshot.getDataFiles()) {
+      int status = runProcess(bcftools("view", "--header-only", dataFile.getAbsolutePath()),
+          in -> readLines(in, line -> found[0] = found[0] || line.startsWith(declaration)));
+      if (status != 0) throw new VCFStoreException("VCF/BCF file header extraction using bcftools failed.");
+      if (found[0]) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Write the positions as a regions file, sorted by chromosome and position.
+   *
+   * @param regionsFile
+   * @param positions
+   * @throws IOException
+   */
+  private void writeRegions(File regionsFile, Collection<String> positions) throws IOException {
+    List<String[]> regions = positions.stream().map(position -> position.split(":")).collect(Collectors.toList());
+    regions.sort(Comparator.<String[], String>comparing(region -> region[0]).thenComparingLong(region -> Long.parseLong(region[1])));
+    try (BufferedWriter writer = Files.newBufferedWriter(regionsFile.toPath())) {
+      for (String[] region : regions) {
+        writer.write(region[0] + "\t" + region[1]);
+        writer.newLine();
+      }
+    }
+  }
+
+  private void readLines(InputStream in, Consumer<String> consumer) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    String line;
+    while ((line = reader.readLine()) != null) consumer.accept(line);
+  }
+
+  /**
+   * Normalize a chromosome:position position.
+   *
+   * @param position
+   * @return
+   * @throws IllegalArgumentException
+   */
+  private static String normalizePosition(String position) {
+    int idx = position == null ? -1 : position.lastIndexOf(':');
+    if (idx <= 0) throw new IllegalArgumentException("Not a chromosome:position: " + position);
+    try {
+      return position.substring(0, idx).trim() + ":" + Long.parseLong(position.substring(idx + 1).trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Not a chromosome:position: " + position);
+    }
+  }
+
+  /**
+   * Get the count of alternate alleles of a genotype call (GT format field, such as 0/1, 1|1 or 2).
+   *
+   * @param call
+   * @return
+   */
+  static byte parseGenotype(String call) {
+    int count = 0;
+    int alleleLength = 0;
+    boolean reference = true;
+    for (int i = 0; i < call.length(); i++) {
+      char c = call.charAt(i);
+      if (c == '/' || c == '|') {
+        if (alleleLength == 0) return JenniteVCFGenotypes.MISSING;
+        if (!reference) count++;
+        reference = true;
+        alleleLength = 0;
+      } else if (c == '.') {
+        return JenniteVCFGenotypes.MISSING;
+      } else {
+        if (c != '0') reference = false;
+        alleleLength++;
+      }
+    }
+    if (alleleLength == 0) return JenniteVCFGenotypes.MISSING;
+    if (!reference) count++;
+    return (byte) count;
+  }
+
+  /**
+   * Get the dosage of the first alternate allele (DS format field).
+   *
+   * @param dosage
+   * @return NaN if missing
+   */
+  static float parseDosage(String dosage) {
+    int idx = dosage.indexOf(',');
+    try {
+      return Float.parseFloat(idx < 0 ? dosage : dosage.substring(0, idx));
+    } catch (NumberFormatException e) {
+      return Float.NaN;
+    }
+  }
+
+  /**
+   * Get a snapshot of the VCF data file and of its pending delta segments, to be closed once read. The pending delta
+   * segments are also scheduled to be merged in the background.
+   *
+   * @param vcfName
+   * @param link whether the files are linked so that the VCF can be modified while being read, otherwise the VCF read
+   * lock is held until the snapshot is closed
+   * @return
+   * @throws NoSuchElementException
+   * @throws IOException
+   */
+  private Snapshot snapshot(String vcfName, boolean link) throws NoSuchElementException, IOException {
+    Lock lock = service.getLock(name, vcfName).readLock();
+    lock.lock();
+    Snapshot snapshot = null;
+    try {
+      if (!hasVCF(vcfName)) throw new NoSuchElementException("No VCF with name '" + vcfName + "' can be found");
+      File dataFile = getVCFGZFile(vcfName);
+      List<Delta> deltas = new ArrayList<>();
+      for (File deltaFolder : getDeltaFolders(vcfName)) {
+        File deltaFile = getDeltaDataFile(deltaFolder);
+        deltas.add(new Delta(deltaFolder.getName(), getDeltaMode(deltaFolder), VCF_GZ_FILE.equals(deltaFile.getName()) ? Format.VCF : Format.BCF, deltaFile));
+      }
+      List<String> sampleIds = List.copyOf(JenniteVCFSummary.newSummary(vcfName).samples(getSamplesFile(vcfName)).build().getSampleIds());
+      snapshot = new Snapshot(vcfName, getFormat(vcfName), dataFile, deltas, sampleIds, service.newSnapshotFolder(), lock);
+      if (link) snapshot.link();
+      if (!deltas.isEmpty()) scheduleCompaction(vcfName);
+      return snapshot;
+    } catch (IOException | RuntimeException e) {
+      if (snapshot == null) lock.unlock();
+      else snapshot.close();
+      throw e;
+    }
+  }
+
+  private void scheduleCompaction(String vcfName) {
+    service.compact(name, vcfName, () -> compact(vcfName));
+  }
+
+  /**
+   * Merge the delta segments, in the order they were appended, into the VCF data file and refresh the VCF index,
+   * samples, statistics and properties. The merge is done from a snapshot, without locking the VCF, and the merged
+   * files replace the current ones only if the VCF was not modified meanwhile. A delta segment that cannot be merged
+   * is moved to the VCF quarantine folder and the VCF samples and properties are restored without it. The shared files
+   * that were replaced and that are not linked anymore are then deleted.
+   *
+   * @param vcfName
+   * @return Whether there are delta segments left to be merged
+   */
+  private boolean compact(String vcfName) {
+    Snapshot snapshot;
+    try {
+      snapshot = snapshot(vcfName, true);
+    } catch (NoSuchElementException e) {
+      // deleted meanwhile
+      return false;
+    } catch (IOException e) {
+      log.error("VCF '{}' compaction failed", vcfName, e);
+      return false;
+    }
+    boolean replaced = false;
+    try {
+      if (snapshot.getDeltas().isEmpty()) return false;
+      Format format = snapshot.getFormat();
+      File current = snapshot.getDataFile();
+      Delta failed = null;
+      for (Delta delta : snapshot.getDeltas()) {
+        try {
+          current = merge(current, format, Collections.singletonList(delta), snapshot.getFolder(), true);
+        } catch (VCFStoreException e) {
+          log.error("VCF '{}' delta segment {} cannot be merged", vcfName, delta.name(), e);
+          failed = delta;
+          break;
+        }
+      }
+      File samplesFile = new File(snapshot.getFolder(), SAMPLES_FILE);
+      File statsFile = new File(snapshot.getFolder(), STATS_FILE);
+      if (failed == null) {
+        listSamples(vcfName, current, samplesFile);
+        statistics(vcfName, current, statsFile);
+      }
+      snapshot.release();
+
+      Lock lock = service.getLock(name, vcfName).writeLock();
+      lock.lock();
+      try {
+        // the VCF was replaced or deleted, or delta segments were appended meanwhile
+        if (!snapshot.isCurrent()) return hasVCF(vcfName) && !getDeltaFolders(vcfName).isEmpty();
+        if (failed != null) quarantine(vcfName, failed);
+        else {
+          // data file and index are replaced, and not rewritten, as they may be shared
+          File dataFile = getVCFGZFile(vcfName, format);
+          Files.move(getIndexFile(current, format).toPath(), getIndexFile(dataFile, format).toPath(), StandardCopyOption.REPLACE_EXISTING);
+          Files.move(current.toPath(), dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+          Files.move(samplesFile.toPath(), getSamplesFile(vcfName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+          Files.move(statsFile.toPath(), getStatsFile(vcfName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+          properties(vcfName, getOriginalName(vcfName));
+          for (Delta delta : snapshot.getDeltas()) FileUtil.delete(new File(getDeltasFolder(vcfName), delta.name()));
+          replaced = true;
+        }
+        service.getGenotypeCache().invalidate(name + File.separator + vcfName);
+        return !getDeltaFolders(vcfName).isEmpty();
+      } finally {
+        lock.unlock();
+      }
+    } catch (IOException | RuntimeException e) {
+      log.error("VCF '{}' compaction failed", vcfName, e);
+      return false;
+    } finally {
+      snapshot.close();
+      if (replaced) service.pruneBlobs();
+    }
+  }
+
+  /**
+   * Move a delta segment that cannot be merged out of the pending ones, and restore the VCF samples list and properties
+   * without it.
+   *
+   * @param vcfName
+   * @param delta
+   * @throws IOException
+   */
+  private void quarantine(String vcfName, Delta delta) throws IOException {
+    File quarantineFolder = new File(getVCFFolder(vcfName), QUARANTINE_FOLDER);
+    if (!quarantineFolder.exists()) quarantineFolder.mkdirs();
+    File target = new File(quarantineFolder, delta.name() + "_" + System.currentTimeMillis());
+    Files.move(new File(getDeltasFolder(vcfName), delta.name()).toPath(), target.toPath());
+    log.error("VCF '{}' delta segment {} was moved to {}", vcfName, delta.name(), target.getAbsolutePath());
+    summarize(vcfName);
+  }
+
+  /**
+   * Restore the VCF samples list and properties from its data file, and apply the ones of the pending delta segments.
+   *
+   * @param vcfName
+   * @throws IOException
+   */
+  private void summarize(String vcfName) throws IOException {
+    // samples file is re-created, not rewritten, as it may be shared with other VCFs
+    File samplesFile = new File(getVCFFolder(vcfName), SAMPLES_FILE + ".tmp");
+    listSamples(vcfName, getVCFGZFile(vcfName), samplesFile);
+    Files.move(samplesFile.toPath(), getSamplesFile(vcfName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    properties(vcfName, getOriginalName(vcfName));
+    for (File deltaFolder : getDeltaFolders(vcfName)) applyDelta(vcfName, getDeltaMode(deltaFolder), getDeltaSummary(deltaFolder));
+  }
+
+  /**
+   * Add the samples and the counts of a delta segment to the ones of the VCF.
+   *
+   * @param vcfName
+   * @param mode
+   * @param delta
+   * @throws IOException
+   */
+  private void applyDelta(String vcfName, DeltaMode mode, VCFSummary delta) throws IOException {
+    if (DeltaMode.SAMPLES == mode) {
+      unlink(getSamplesFile(vcfName));
+      Files.write(getSamplesFile(vcfName).toPath(), delta.getSampleIds(), StandardOpenOption.APPEND);
+    }
+    updateProperties(vcfName, mode, delta);
+  }
+
+  /**
+   * Merge a data file with a run of delta segments of the same kind, in an indexed file of the folder.
+   *
+   * @param dataFile
+   * @param format format of the merged file
+   * @param deltas
+   * @param folder
+   * @param background whether the merge is run with the idle I/O scheduling class
+   * @return The merged file
+   * @throws IOException
+   */
+  private File merge(File dataFile, Format format, List<Delta> deltas, File folder, boolean background) throws IOException {
+    File output = new File(folder, "merged_" + deltas.get(deltas.size() - 1).name() + "." + format.name().toLowerCase() + ".gz");
+    String[] command = mergeCommand(dataFile, deltas, Format.VCF == format ? "z" : "b", output);
+    int status = runProcess(background ? background(command) : command, JenniteVCFStore::discard);
+    if (status != 0) throw new VCFStoreException("VCF/BCF file delta merge using bcftools failed");
+    command = tabix("-f", "-p", format.name().toLowerCase(), output.getAbsolutePath());
+    status = runProcess(background ? background(command) : command, JenniteVCFStore::discard);
+    if (status != 0) throw new VCFStoreException("VCF/BCF file indexing using tabix failed");
+    return output;
+  }
+
+  /**
+   * Get the bcftools command that merges a data file with a run of delta segments of the same kind: appended records
+   * are added to the existing ones, except the exact duplicates (same position, REF and ALT alleles) of which only the
+   * most recent record is kept, and appended samples are added to the existing records.
+   *
+   * @param dataFile
+   * @param deltas
+   * @param outputType
+   * @param outputFile standard output if null
+   * @return
+   */
+  private String[] mergeCommand(File dataFile, List<Delta> deltas, String outputType, File outputFile) {
+    List<String> args = new ArrayList<>();
+    List<File> inputs = new ArrayList<>();
+    if (DeltaMode.RECORDS == deltas.get(0).mode()) {
+      args.addAll(Arrays.asList("concat", "--allow-overlaps", "--rm-dups", "exact"));
+      // first input wins, so the most recent records come first
+      for (int i = deltas.size() - 1; i >= 0; i--) inputs.add(deltas.get(i).dataFile());
+      inputs.add(dataFile);
+    } else {
+      args.add("merge");
+      inputs.add(dataFile);
+      deltas.forEach(delta -> inputs.add(delta.dataFile()));
+    }
+    args.addAll(Arrays.asList("--output-type", outputType));
+    if (outputFile != null) args.addAll(Arrays.asList("--output-file", outputFile.getAbsolutePath()));
+    inputs.forEach(input -> args.add(input.getAbsolutePath()));
+    return bcftools(args.toArray(new String[0]));
+  }
+
+  /**
+   * Get the commands that pipe the data of a snapshot, merged with its pending delta segments, into a bcftools command.
+   * Delta segments of the same kind are merged on the fly; when kinds alternate, all the runs of delta segments but
+   * the last one are first merged in the snapshot folder.
+   *
+   * @param snapshot
+   * @param args bcftools arguments, the input file is appended
+   * @return
+   * @throws IOException
+   */
+  private List<String[]> pipeline(Snapshot snapshot, String... args) throws IOException {
+    List<String> command = new ArrayList<>(Arrays.asList(args));
+    if (snapshot.getDeltas().isEmpty()) {
+      command.add(snapshot.getDataFile().getAbsolutePath());
+      return Collections.singletonList(bcftools(command.toArray(new String[0])));
+    }
+    List<List<Delta>> runs = new ArrayList<>();
+    for (Delta delta : snapshot.getDeltas()) {
+      if (runs.isEmpty() || runs.get(runs.size() - 1).get(0).mode() != delta.mode()) runs.add(new ArrayList<>());
+      runs.get(runs.size() - 1).add(delta);
+    }
+    File current = snapshot.getDataFile();
+    for (List<Delta> run : runs.subList(0, runs.size() - 1))
+      current = merge(current, snapshot.getFormat(), run, snapshot.getFolder(), false);
+    command.add("-");
+    return Arrays.asList(mergeCommand(current, runs.get(runs.size() - 1), "u", null), bcftools(command.toArray(new String[0])));
+  }
+
+  /**
+   * Identify a file, so that it can be known whether it was replaced.
+   *
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  private static Object getFileKey(File file) throws IOException {
+    BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+    return attributes.fileKey() == null ? attributes.lastModifiedTime() + ":" + attributes.size() : attributes.fileKey();
+  }
+
+  /**
+   * Get the pending delta segment folders, in the order they were appended.
+   *
+   * @param vcfName
+   * @return
+   */
+  private List<File> getDeltaFolders(String vcfName) {
+    List<File> folders = new ArrayList<>();
+    File[] children = getDeltasFolder(vcfName).listFiles(child -> child.isDirectory() && new File(child, DELTA_PROPERTIES_FILE).exists());
+    if (children == null) return folders;
+    folders.addAll(Arrays.asList(children));
+    folders.sort(Comparator.comparing(File::getName));
+    return folders;
+  }
+
+  /**
+   * Get the location of the next delta segment folder, numbered after the existing ones (including the incomplete ones).
+   * The folder is not created, the delta segment is to be moved there.
+   *
+   * @param vcfName
+   * @return
+   */
+  private File newDeltaFolder(String vcfName) {
+    File deltasFolder = getDeltasFolder(vcfName);
+    if (!deltasFolder.exists()) deltasFolder.mkdirs();
+    String[] children = deltasFolder.list();
+    int count = children == null ? 0 : Arrays.stream(children).filter(child -> child.matches("\\d+")).mapToInt(Integer::parseInt).max().orElse(0);
+    return new File(deltasFolder, String.format("%06d", count + 1));
+  }
+
+  /**
+   * Get the delta segment data file, in the format of the appended file.
+   *
+   * @param deltaFolder
+   * @return
+   */
+  private File getDeltaDataFile(File deltaFolder) {
+    File dataFile = new File(deltaFolder, VCF_GZ_FILE);
+    return dataFile.exists() ? dataFile : new File(deltaFolder, BCF_GZ_FILE);
+  }
+
+  private DeltaMode getDeltaMode(File deltaFolder) throws IOException {
+    return DeltaMode.valueOf(loadProperties(new File(deltaFolder, DELTA_PROPERTIES_FILE)).getProperty("mode"));
   }
 
-  @Override
-  public Collection<String> getVCFNames() {
-    List<String> names = new ArrayList<>();
-    File directory = new File(properties.getProperty("data.dir"), name);
-    File[] children = directory.listFiles(File::isDirectory);
-    if (children == null) return names;
-    for (File child : children) {
-      // a new VCF could be in treatment, so report only the ones with properties ready
-      File propFile = getVCFPropertiesFile(child.getName());
-      if (propFile.exists()) names.add(child.getName());
-    }
-    return names;
+  private VCFSummary getDeltaSummary(File deltaFolder) {
+    File dataFile = getDeltaDataFile(deltaFolder);
+    return JenniteVCFSummary.newSummary(deltaFolder.getName())
+        .format(VCF_GZ_FILE.equals(dataFile.getName()) ? Format.VCF : Format.BCF).size(dataFile)
+        .samples(new File(deltaFolder, SAMPLES_FILE)).statistics(new File(deltaFolder, STATS_FILE)).build();
   }
 
-  @Override
-  public boolean hasVCF(String vcfName) {
-    return getVCFGZFile(vcfName).exists();
+  private String getOriginalName(String vcfName) throws IOException {
+    return loadProperties(getVCFPropertiesFile(vcfName)).getProperty("name.original", vcfName);
   }
 
-  @Override
-  public VCFSummary getVCFSummary(String vcfName) throws NoSuchElementException {
-    if (!hasVCF(vcfName)) throw new NoSuchElementException("No VCF with name '" + vcfName + "' can be found");
-    return JenniteVCFSummary.newSummary(vcfName).properties(getVCFPropertiesFile(vcfName)).samples(getSamplesFile(vcfName)).build();
+  private void deltaProperties(File deltaFolder, DeltaMode mode, String originalVcfName) throws IOException {
+    try (OutputStream out = new FileOutputStream(new File(deltaFolder, DELTA_PROPERTIES_FILE))) {
+      Properties prop = new Properties();
+      prop.setProperty("mode", mode.name());
+      prop.setProperty("name.original", originalVcfName);
+      prop.store(out, null);
+    }
   }
 
   /**
-   * Prepare VCF folder and write VCF/BCF file, compress it if necessary and index it (requires VCF/BCF to be sorted).
+   * Update the VCF properties counts with the ones of an appended delta segment. When records are appended, the variants
+   * count includes the ones that are exact duplicates of existing records; when samples are appended, the counts assume
+   * that the delta has the same records as the VCF. Exact counts are restored when the deltas are merged.
    *
    * @param vcfName
-   * @param vcf
+   * @param mode
+   * @param delta
    * @throws IOException
    */
-  @Override
-  public void writeVCF(String vcfName, InputStream vcf) throws IOException {
-    // writing a VCF is making a directory with the compressed and indexed VCF file
-    String store;
-    Format format = Format.VCF;
-    boolean isCompressed = false;
-    if (vcfName.endsWith(".vcf")) {
-      store = vcfName.replaceAll("\\.vcf$", "");
-    }
-    else if (vcfName.endsWith(".vcf.gz")) {
-      store = vcfName.replaceAll("\\.vcf\\.gz$", "");
-      isCompressed = true;
-    }
-    else if (vcfName.endsWith(".bcf")) {
-      store = vcfName.replaceAll("\\.bcf$", "");
-      format = Format.BCF;
-    }
-    else if (vcfName.endsWith(".bcf.gz")) {
-      store = vcfName.replaceAll("\\.bcf\\.gz$", "");
-      isCompressed = true;
-      format = Format.BCF;
-    }
-    else {
-      // assume it is a compressed VCF file
-      store = vcfName;
-      isCompressed = true;
+  private void updateProperties(String vcfName, DeltaMode mode, VCFSummary delta) throws IOException {
+    File propFile = getVCFPropertiesFile(vcfName);
+    Properties prop = loadProperties(propFile);
+    long variantsCount = Long.parseLong(prop.getProperty("summary.variants.count", "0"));
+    long samplesCount = Long.parseLong(prop.getProperty("summary.samples.count", "0"));
+    if (DeltaMode.RECORDS == mode) variantsCount += delta.getVariantsCount();
+    else samplesCount += delta.getSampleIds().size();
+    prop.setProperty("summary.variants.count", "" + variantsCount);
+    prop.setProperty("summary.samples.count", "" + samplesCount);
+    prop.setProperty("summary.genotypes.count", "" + variantsCount * samplesCount);
+    prop.setProperty("summary.size", "" + (Long.parseLong(prop.getProperty("summary.size", "0")) + delta.size()));
+    try (OutputStream out = new FileOutputStream(propFile)) {
+      prop.store(out, null);
     }
-
-    // write data file, replacing anything that could be found at the VCF folder location
-    File vcfFolder = getVCFFolder(store);
-    if (vcfFolder.exists()) FileUtil.delete(vcfFolder);
-    vcfFolder.mkdirs();
-    File destination = isCompressed ? getVCFGZFile(store, format) : new File(getVCFFolder(store), format.equals(Format.VCF) ? VCF_FILE : BCF_FILE);
-    Files.copy(vcf, destination.toPath());
-
-    if (!isCompressed) compress(store, format);
-    index(store);
-    listSamples(store);
-    statistics(store);
-    properties(store, vcfName);
   }
 
-  @Override
-  public void deleteVCF(String vcfName) {
-    File store = getVCFFolder(vcfName);
-    if (!store.exists()) return;
-    try {
-      FileUtil.delete(store);
-    } catch (IOException e) {
-      // ignore
+  private Properties loadProperties(File propFile) throws IOException {
+    Properties prop = new Properties();
+    try (InputStream in = new FileInputStream(propFile)) {
+      prop.load(in);
     }
+    return prop;
   }
 
-  @Override
-  public void readVCF(String vcfName, OutputStream out) throws NoSuchElementException, IOException {
-    readVCF(vcfName, getFormat(vcfName), out);
+  /**
+   * Subset a VCF/BCF file by samples in a compressed file of the requested format.
+   *
+   * @param snapshot
+   * @param samplesFile no samples subset if null
+   * @param format
+   * @param outputFile
+   * @throws IOException
+   */
+  private void subset(Snapshot snapshot, File samplesFile, Format format, File outputFile) throws IOException {
+    List<String> args = new ArrayList<>(Collections.singletonList("view"));
+    if (samplesFile != null)
+      args.addAll(Arrays.asList("--samples-file", samplesFile.getAbsolutePath(), "--force-samples")); // do not fail if there are unknown samples
+    args.addAll(Arrays.asList(
+        "--output-type", Format.VCF == format ? "z" : "b", // compressed VCF/BCF
+        "--output-file", outputFile.getAbsolutePath()));
+    int status = runProcess(pipeline(snapshot, args.toArray(new String[0])), JenniteVCFStore::discard);
+    if (status != 0) throw new VCFStoreException(samplesFile == null ?
+        "VCF/BCF file format conversion using bcftools failed." : "VCF/BCF file subset by samples using bcftools failed.");
   }
 
-  @Override
-  public void readVCF(String vcfName, Format format, OutputStream out) throws NoSuchElementException, IOException {
-    if (!hasVCF(vcfName)) throw new NoSuchElementException("No VCF with name '" + vcfName + "' can be found");
-    if (getFormat(vcfName) == format)
-      Files.copy(getVCFGZFile(vcfName).toPath(), out);
-    else {
-      // need to convert VCF format flavour
-      String timestamp = dateTimeFormatter.format(System.currentTimeMillis());
-      File workDir = getVCFWorkFolder(vcfName);
-      File outputFile = new File(workDir, "data_" + timestamp + "." + format.name().toLowerCase() + ".gz");
-      outputFile.deleteOnExit();
-
-      String outputType = Format.VCF == format ? "z" : "b";
-      int status = runProcess(vcfName, bcftools("view",
-          "--output-type", outputType, // compressed VCF/BCF
-          "--output-file", outputFile.getAbsolutePath(),
-          getVCFGZFile(vcfName).getAbsolutePath()));
-      if (status != 0) throw new VCFStoreException("VCF/BCF file format conversion using bcftools failed.");
+  /**
+   * Subset concurrently each of the VCF/BCF files by samples in an intermediate compressed BCF file. The data files
+   * without pending delta segments are used as is when there is no samples subset. If some of the VCFs stay locked
+   * while being read, the files are subset one after the other by the calling thread, so that it does not wait for
+   * processing tasks while holding VCF locks.
+   *
+   * @param snapshots
+   * @param samples samples subset, all the samples if null or empty
+   * @param workFiles the work files that were created, to be closed by the caller
+   * @return The files to be concatenated, in the same order as the snapshots
+   * @throws IOException
+   */
+  private List<File> subset(List<Snapshot> snapshots, Collection<String> samples, List<JenniteVCFWorkArea.WorkFile> workFiles) throws IOException {
+    File samplesFile = null;
+    if (samples != null && !samples.isEmpty()) {
+      JenniteVCFWorkArea.WorkFile samplesWorkFile = service.getWorkArea().newFile(name, "samples_", ".txt");
+      workFiles.add(samplesWorkFile);
+      writeSamples(samplesWorkFile.getFile(), samples);
+      samplesFile = samplesWorkFile.getFile();
+    }
+    boolean locked = snapshots.stream().anyMatch(Snapshot::isLocked);
 
-      Files.copy(outputFile.toPath(), out);
+    List<Future<File>> futures = new ArrayList<>();
+    for (Snapshot snapshot : snapshots) {
+      if (samplesFile == null && snapshot.getDeltas().isEmpty()) {
+        futures.add(CompletableFuture.completedFuture(snapshot.getDataFile()));
+        continue;
+      }
+      JenniteVCFWorkArea.WorkFile outputFile = newWorkFile(snapshot.getVCFName(), "data_", ".bcf.gz");
+      workFiles.add(outputFile);
+      File subsetSamplesFile = samplesFile;
+      FutureTask<File> task = new FutureTask<>(() -> {
+        subset(snapshot, subsetSamplesFile, Format.BCF, outputFile.getFile());
+        return outputFile.getFile();
+      });
+      if (locked) task.run();
+      else service.getExecutor().execute(task);
+      futures.add(task);
+    }
+    List<File> outputFiles = new ArrayList<>();
+    try {
+      for (Future<File> future : futures) outputFiles.add(future.get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("VCF/BCF files subset by samples was interrupted");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof VCFStoreException) throw (VCFStoreException) e.getCause();
+      throw new IOException("VCF/BCF files subset by samples failed", e.getCause());
+    } finally {
+      futures.forEach(future -> future.cancel(true));
     }
+    return outputFiles;
   }
 
-  @Override
-  public void readVCF(String vcfName, OutputStream out, Collection<String> samples) throws NoSuchElementException, IOException {
-    readVCF(vcfName, getFormat(vcfName), out, samples);
+  /**
+   * Verify that the VCF files will have the same samples, in the same order, once the samples subset is applied. Sites-only
+   * VCF files (without samples) can be concatenated, unless a samples subset is requested.
+   *
+   * @param vcfSamples the samples of each VCF, in the concatenation order
+   * @param samples
+   */
+  static void checkSamplesCompatibility(Map<String, List<String>> vcfSamples, Collection<String> samples) {
+    String reference = null;
+    List<String> referenceSamples = null;
+    for (Map.Entry<String, List<String>> entry : vcfSamples.entrySet()) {
+      List<String> subsetSamples = getSubsetSamples(entry.getValue(), samples);
+      if (reference == null) {
+        reference = entry.getKey();
+        referenceSamples = subsetSamples;
+        if (referenceSamples.isEmpty() && samples != null && !samples.isEmpty())
+          throw new VCFStoreException("No samples to be exported from VCF '" + reference + "'");
+      } else if (!referenceSamples.equals(subsetSamples))
+        throw new VCFStoreException("Samples of VCF '" + entry.getKey() + "' are not compatible with the ones of VCF '" + reference + "'");
+    }
   }
 
-  @Override
-  public void readVCF(String vcfName, Format format, OutputStream out, Collection<String> samples) throws NoSuchElementException, IOException {
-    if (!hasVCF(vcfName)) throw new NoSuchElementException("No VCF with name '" + vcfName + "' can be found");
-    if (samples == null || samples.isEmpty()) {
-      readVCF(vcfName, format, out);
-      return;
-    }
-    String timestamp = dateTimeFormatter.format(System.currentTimeMillis());
-    File workDir = getVCFWorkFolder(vcfName);
-    File samplesFile = new File(workDir, "samples_" + timestamp + ".txt");
-    File outputFile = new File(workDir, "data_" + timestamp + "." + format.name().toLowerCase() + ".gz");
-    outputFile.deleteOnExit();
-    samplesFile.deleteOnExit();
+  /**
+   * Get the samples that will be exported from a VCF file, in the subset order if any.
+   *
+   * @param vcfSamples
+   * @param samples
+   * @return
+   */
+  private static List<String> getSubsetSamples(List<String> vcfSamples, Collection<String> samples) {
+    if (samples == null || samples.isEmpty()) return vcfSamples;
+    Set<String> available = new HashSet<>(vcfSamples);
+    return samples.stream().filter(available::contains).distinct().collect(Collectors.toList());
+  }
 
+  private void writeSamples(File samplesFile, Collection<String> samples) throws IOException {
     try (BufferedWriter writer = Files.newBufferedWriter(samplesFile.toPath())) {
       for (String s : samples) {
         writer.write(s);
         writer.newLine();
       }
     }
-
-    String outputType = Format.VCF == format ? "z" : "b";
-    int status = runProcess(vcfName, bcftools("view",
-        "--samples-file", samplesFile.getAbsolutePath(),
-        "--force-samples", // do not fail if there are unknown samples
-        "--output-type", outputType, // compressed VCF/BCF
-        "--output-file", outputFile.getAbsolutePath(),
-        getVCFGZFile(vcfName).getAbsolutePath()));
-    if (status != 0) throw new VCFStoreException("VCF/BCF file subset by samples using bcftools failed.");
-
-    Files.copy(outputFile.toPath(), out);
   }
 
-  @Override
-  public void readVCFStatistics(String vcfName, OutputStream out) throws NoSuchElementException, IOException {
-    if (!hasVCF(vcfName)) throw new NoSuchElementException("No VCF with name '" + vcfName + "' can be found");
-    Files.copy(getStatsFile(vcfName).toPath(), out);
+  /**
+   * Get the VCF names in natural order, so that per-chromosome files are concatenated as chr1, chr2, ..., chr10 etc.
+   *
+   * @return
+   */
+  private List<String> getSortedVCFNames() {
+    List<String> names = new ArrayList<>(getVCFNames());
+    names.sort(JenniteVCFStore::compareNaturally);
+    return names;
   }
 
-  //
-  // Private methods
-  //
+  static int compareNaturally(String name1, String name2) {
+    Matcher m1 = NUMBER_PATTERN.matcher(name1);
+    Matcher m2 = NUMBER_PATTERN.matcher(name2);
+    if (m1.find() && m2.find() && name1.substring(0, m1.start()).equals(name2.substring(0, m2.start()))) {
+      int cmp = new BigInteger(m1.group()).compareTo(new BigInteger(m2.group()));
+      if (cmp != 0) return cmp;
+    }
+    return name1.compareTo(name2);
+  }
 
-  private void compress(String vcfName, Format format) {
-    File dataFile = new File(getVCFFolder(vcfName), Format.VCF == format ? VCF_FILE : BCF_FILE);
+  private void compress(String vcfName, File dataFile) {
     if (!dataFile.exists()) return;
-    int status = runProcess(vcfName, bgzip("-f", dataFile.getAbsolutePath()));
+    int status = runProcess(vcfName, background(bgzip("-f", dataFile.getAbsolutePath())));
     if (status != 0) throw new VCFStoreException("VCF/BCF file compression using bgzip failed");
   }
 
-  private void index(String vcfName) {
-    int status = runProcess(vcfName, tabix("-f", "-p", getFormat(vcfName).name().toLowerCase(), getVCFGZFile(vcfName).getAbsolutePath()));
+  private void index(String vcfName, File dataFile, Format format) {
+    int status = runProcess(vcfName, background(tabix("-f", "-p", format.name().toLowerCase(), dataFile.getAbsolutePath())));
     if (status != 0) throw new VCFStoreException("VCF/BCF file indexing using tabix failed");
   }
 
-  private void listSamples(String vcfName) {
-    int status = runProcess(vcfName, bcftools("query", "--list-samples", getVCFGZFile(vcfName).getAbsolutePath()),
-        ProcessBuilder.Redirect.to(getSamplesFile(vcfName)));
+  private void listSamples(String vcfName, File dataFile, File samplesFile) {
+    int status = runProcess(vcfName, background(bcftools("query", "--list-samples", dataFile.getAbsolutePath())),
+        ProcessBuilder.Redirect.to(samplesFile));
     if (status != 0) throw new VCFStoreException("VCF/BCF file samples listing using bcftools failed");
   }
 
-  private void statistics(String vcfName) {
-    int status = runProcess(vcfName, bcftools("stats", getVCFGZFile(vcfName).getAbsolutePath()),
-        ProcessBuilder.Redirect.to(getStatsFile(vcfName)));
+  private void statistics(String vcfName, File dataFile, File statsFile) {
+    int status = runProcess(vcfName, background(bcftools("stats", dataFile.getAbsolutePath())),
+        ProcessBuilder.Redirect.to(statsFile));
     if (status != 0) throw new VCFStoreException("VCF/BCF file statistics extraction using bcftools failed");
   }
 
@@ -299,15 +1530,25 @@ public class JenniteVCFStore implements VCFStore {
   }
 
   /**
-   * Get the VCF work folder location.
+   * Get the store data folder location.
+   *
+   * @return
+   */
+  private File getStoreFolder() {
+    return new File(properties.getProperty(VCFStoreService.DATA_DIR_PROPERTY), name);
+  }
+
+  /**
+   * Get a new work file in the VCF work folder, to be closed when the transfer is completed.
    *
    * @param vcfName
+   * @param prefix
+   * @param suffix
    * @return
+   * @throws IOException
    */
-  private File getVCFWorkFolder(String vcfName) {
-    File workDir = new File(properties.getProperty(VCFStoreService.WORK_DIR_PROPERTY), name + File.separator + vcfName);
-    if (!workDir.exists()) workDir.mkdirs();
-    return workDir;
+  private JenniteVCFWorkArea.WorkFile newWorkFile(String vcfName, String prefix, String suffix) throws IOException {
+    return service.getWorkArea().newFile(name + File.separator + vcfName, prefix, suffix);
   }
 
   /**
@@ -334,6 +1575,27 @@ public class JenniteVCFStore implements VCFStore {
     return dataFile.exists() ? dataFile : new File(getVCFFolder(vcfName), BCF_GZ_FILE);
   }
 
+  /**
+   * Get the index file location of a VCF/BCF compressed file, as made by tabix.
+   *
+   * @param dataFile
+   * @param format
+   * @return
+   */
+  private File getIndexFile(File dataFile, Format format) {
+    return new File(dataFile.getParentFile(), dataFile.getName() + (Format.VCF == format ? ".tbi" : ".csi"));
+  }
+
+  /**
+   * Get the delta segments folder location.
+   *
+   * @param vcfName
+   * @return
+   */
+  private File getDeltasFolder(String vcfName) {
+    return new File(getVCFFolder(vcfName), DELTAS_FOLDER);
+  }
+
   /**
    * Get the VCF file format flavour.
    *
@@ -383,7 +1645,7 @@ public class JenniteVCFStore implements VCFStore {
     try {
       ProcessBuilder.Redirect red = redirect == null ? ProcessBuilder.Redirect.appendTo(new File(getVCFFolder(vcfName), EXEC_LOG)) : redirect;
       Process process = buildProcess(vcfName, command, red).start();
-      rval = process.waitFor();
+      rval = waitFor(process);
     } catch (Exception e) {
       log.error("Process execution failed", e);
     }
@@ -391,6 +1653,105 @@ public class JenniteVCFStore implements VCFStore {
     return rval;
   }
 
+  /**
+   * Run a process in the store folder and copy its standard output to the provided stream. The process error output
+   * is appended to the store execution log.
+   *
+   * @param command
+   * @param out
+   * @return
+   * @throws IOException
+   */
+  private int runProcess(String[] command, OutputStream out) throws IOException {
+    return runProcess(Collections.singletonList(command), out);
+  }
+
+  /**
+   * Run a pipeline of processes in the store folder and copy the standard output of the last one to the provided
+   * stream. The processes error output is appended to the store execution log.
+   *
+   * @param commands
+   * @param out
+   * @return
+   * @throws IOException
+   */
+  private int runProcess(List<String[]> commands, OutputStream out) throws IOException {
+    return runProcess(commands, in -> service.getIOScheduler().transfer(in, out, JenniteVCFIOScheduler.IOClass.FOREGROUND));
+  }
+
+  /**
+   * Run a process in the store folder and read its standard output. The process error output is appended to the store
+   * execution log.
+   *
+   * @param command
+   * @param reader
+   * @return
+   * @throws IOException
+   */
+  private int runProcess(String[] command, ProcessReader reader) throws IOException {
+    return runProcess(Collections.singletonList(command), reader);
+  }
+
+  /**
+   * Run a pipeline of processes in the store folder and read the standard output of the last one. The processes error
+   * output is appended to the store execution log.
+   *
+   * @param commands
+   * @param reader
+   * @return The first non-zero exit value, if any
+   * @throws IOException
+   */
+  private int runProcess(List<String[]> commands, ProcessReader reader) throws IOException {
+    int rval = -1;
+    List<ProcessBuilder> builders = new ArrayList<>();
+    for (String[] command : commands) {
+      ProcessBuilder pb = new ProcessBuilder(command);
+      pb.directory(getStoreFolder());
+      pb.redirectError(ProcessBuilder.Redirect.appendTo(new File(getStoreFolder(), EXEC_LOG)));
+      builders.add(pb);
+    }
+    List<Process> processes = ProcessBuilder.startPipeline(builders);
+    try (InputStream in = processes.get(processes.size() - 1).getInputStream()) {
+      reader.read(in);
+      rval = 0;
+      for (Process process : processes) {
+        int status = waitFor(process);
+        if (rval == 0) rval = status;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Process execution was interrupted");
+    } catch (ExecutionException e) {
+      throw new IOException("Process execution failed", e.getCause());
+    } finally {
+      processes.stream().filter(Process::isAlive).forEach(Process::destroy);
+      log.info("{} >> {}", commands.stream().map(command -> String.join(" ", command)).collect(Collectors.joining(" | ")), rval);
+    }
+    return rval;
+  }
+
+  /**
+   * Read the standard output of a process that writes to a file.
+   *
+   * @param in
+   * @throws IOException
+   */
+  private static void discard(InputStream in) throws IOException {
+    in.transferTo(OutputStream.nullOutputStream());
+  }
+
+  /**
+   * Wait for the process to exit, without holding the carrier thread when called from a virtual thread.
+   *
+   * @param process
+   * @return
+   * @throws InterruptedException
+   * @throws ExecutionException
+   */
+  private int waitFor(Process process) throws InterruptedException, ExecutionException {
+    return process.onExit().get().exitValue();
+  }
+
   /**
    * Build a process that will be executed in the VCF folder.
    *
@@ -437,6 +1798,24 @@ public class JenniteVCFStore implements VCFStore {
     return getCommand("tabix", args);
   }
 
+  /**
+   * Run an ingestion command with the idle I/O scheduling class, if the ionice executable is configured, so that
+   * it does not slow down the exports.
+   *
+   * @param command
+   * @return
+   */
+  private String[] background(String[] command) {
+    String ionice = properties.getProperty("exec.ionice");
+    if (ionice == null || ionice.trim().isEmpty()) return command;
+    String[] prefixed = new String[command.length + 3];
+    prefixed[0] = ionice.trim();
+    prefixed[1] = "-c";
+    prefixed[2] = "3";
+    System.arraycopy(command, 0, prefixed, 3, command.length);
+    return prefixed;
+  }
+
   private String[] getCommand(String name, String... args) {
     String[] command = new String[args.length + 1];
     command[0] = getExec(name);
@@ -449,4 +1828,196 @@ public class JenniteVCFStore implements VCFStore {
   private String getExec(String name) {
     return properties.getProperty("exec." + name, "/usr/local/bin/" + name);
   }
+
+  /**
+   * Opens the data stream of a VCF/BCF file to be written.
+   */
+  private interface VCFSource {
+    InputStream open() throws IOException;
+  }
+
+  /**
+   * How a delta segment is to be merged in the VCF data file.
+   */
+  private enum DeltaMode {
+    RECORDS, // same samples, new records
+    SAMPLES  // new samples, same records
+  }
+
+  /**
+   * A pending delta segment, with its indexed data file.
+   */
+  private record Delta(String name, DeltaMode mode, Format format, File dataFile) {
+  }
+
+  /**
+   * The data file of a VCF and its pending delta segments, with their indexes, as they were when the snapshot was
+   * taken. The files are hard linked in a snapshot folder, so that they can be read while the VCF is modified; if they
+   * cannot be linked, the VCF read lock is held until the snapshot is closed.
+   */
+  private final class Snapshot implements Closeable {
+
+    private final String vcfName;
+
+    private final Format format;
+
+    private final Object dataKey;
+
+    private final List<String> sampleIds;
+
+    private final File folder;
+
+    private File dataFile;
+
+    private List<Delta> deltas;
+
+    private Lock lock;
+
+    private Snapshot(String vcfName, Format format, File dataFile, List<Delta> deltas, List<String> sampleIds, File folder, Lock lock) throws IOException {
+      this.vcfName = vcfName;
+      this.format = format;
+      this.dataFile = dataFile;
+      this.dataKey = getFileKey(dataFile);
+      this.deltas = deltas;
+      this.sampleIds = sampleIds;
+      this.folder = folder;
+      this.lock = lock;
+    }
+
+    String getVCFName() {
+      return vcfName;
+    }
+
+    Format getFormat() {
+      return format;
+    }
+
+    File getDataFile() {
+      return dataFile;
+    }
+
+    List<Delta> getDeltas() {
+      return deltas;
+    }
+
+    /**
+     * The data file and the data files of the pending delta segments.
+     *
+     * @return
+     */
+    List<File> getDataFiles() {
+      List<File> dataFiles = new ArrayList<>();
+      dataFiles.add(dataFile);
+      deltas.forEach(delta -> dataFiles.add(delta.dataFile()));
+      return dataFiles;
+    }
+
+    /**
+     * Samples of the VCF, including the ones of the pending delta segments.
+     *
+     * @return
+     */
+    List<String> getSampleIds() {
+      return sampleIds;
+    }
+
+    /**
+     * Folder of the snapshot files, that can also hold intermediate files.
+     *
+     * @return
+     */
+    File getFolder() {
+      return folder;
+    }
+
+    boolean isLocked() {
+      return lock != null;
+    }
+
+    /**
+     * Whether the VCF has still the same data file and pending delta segments, to be called with the VCF lock held.
+     *
+     * @return
+     * @throws IOException
+     */
+    boolean isCurrent() throws IOException {
+      File currentDataFile = getVCFGZFile(vcfName);
+      if (!currentDataFile.exists() || !dataKey.equals(getFileKey(currentDataFile))) return false;
+      List<String> deltaNames = deltas.stream().map(Delta::name).collect(Collectors.toList());
+      return deltaNames.equals(getDeltaFolders(vcfName).stream().map(File::getName).collect(Collectors.toList()));
+    }
+
+    /**
+     * Link the files in the snapshot folder and release the VCF read lock, or keep it if the files cannot be linked.
+     */
+    private void link() {
+      try {
+        File linkedDataFile = link(dataFile, format, "data");
+        List<Delta> linkedDeltas = new ArrayList<>();
+        for (Delta delta : deltas)
+          linkedDeltas.add(new Delta(delta.name(), delta.mode(), delta.format(), link(delta.dataFile(), delta.format(), delta.name())));
+        dataFile = linkedDataFile;
+        deltas = linkedDeltas;
+        release();
+      } catch (IOException | UnsupportedOperationException e) {
+        log.debug("VCF '{}' files cannot be linked, the VCF stays locked while it is read", vcfName);
+      }
+    }
+
+    private File link(File file, Format fileFormat, String linkName) throws IOException {
+      File target = new File(folder, linkName + "." + fileFormat.name().toLowerCase() + ".gz");
+      Files.createLink(target.toPath(), file.toPath());
+      Files.createLink(getIndexFile(target, fileFormat).toPath(), getIndexFile(file, fileFormat).toPath());
+      return target;
+    }
+
+    /**
+     * Release the VCF read lock, if it is held.
+     */
+    void release() {
+      if (lock == null) return;
+      lock.unlock();
+      lock = null;
+    }
+
+    @Override
+    public void close() {
+      release();
+      try {
+        FileUtil.delete(folder);
+      } catch (IOException e) {
+        log.warn("Failure when deleting VCF snapshot: {}", folder.getAbsolutePath(), e);
+      }
+    }
+  }
+
+  /**
+   * VCF name and data file type, as deduced from the submitted file name extension.
+   */
+  private record VCFFileName(String name, Format format, boolean compressed) {
+
+    String extension() {
+      return format.name().toLowerCase() + (compressed ? ".gz" : "");
+    }
+
+    static VCFFileName parse(String fileName) {
+      if (fileName.endsWith(".vcf"))
+        return new VCFFileName(fileName.replaceAll("\\.vcf$", ""), Format.VCF, false);
+      if (fileName.endsWith(".vcf.gz"))
+        return new VCFFileName(fileName.replaceAll("\\.vcf\\.gz$", ""), Format.VCF, true);
+      if (fileName.endsWith(".bcf"))
+        return new VCFFileName(fileName.replaceAll("\\.bcf$", ""), Format.BCF, false);
+      if (fileName.endsWith(".bcf.gz"))
+        return new VCFFileName(fileName.replaceAll("\\.bcf\\.gz$", ""), Format.BCF, true);
+      // assume it is a compressed VCF file
+      return new VCFFileName(fileName, Format.VCF, true);
+    }
+  }
+
+  /**
+   * Reads the standard output of a process.
+   */
+  private interface ProcessReader {
+    void read(InputStream in) throws IOException;
+  }
 }
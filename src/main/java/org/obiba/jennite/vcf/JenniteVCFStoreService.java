@@ -13,20 +13,65 @@ package org.obiba.jennite.vcf;
 import org.obiba.core.util.FileUtil;
 import org.obiba.opal.spi.vcf.VCFStore;
 import org.obiba.opal.spi.vcf.VCFStoreService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
 
 /**
  * VCF files are persisted by store. For each store there is a dedicated directory with a properties file and the VCF files.
  */
 public class JenniteVCFStoreService implements VCFStoreService {
 
+  private static final Logger log = LoggerFactory.getLogger(JenniteVCFStoreService.class);
+
+  /**
+   * Processed VCF files that can be shared by several VCFs, identified by their submitted content.
+   */
+  private static final String BLOBS_FOLDER = ".blobs";
+
+  /**
+   * Links to the VCF files being read, so that they can be modified meanwhile.
+   */
+  private static final String SNAPSHOTS_FOLDER = ".snapshots";
+
   private Properties properties;
 
   private boolean running;
 
+  private ExecutorService executor;
+
+  private ExecutorService ingestExecutor;
+
+  private ExecutorService exportExecutor;
+
+  private ExecutorService compactionExecutor;
+
+  private Semaphore copyPermits;
+
+  private JenniteVCFIOScheduler ioScheduler;
+
+  private JenniteVCFWorkArea workArea;
+
+  private JenniteVCFGenotypeCache genotypeCache;
+
+  private final Map<String, ReadWriteLock> locks = new ConcurrentHashMap<>();
+
+  private final ReadWriteLock blobsLock = new ReentrantReadWriteLock();
+
+  private final Set<String> compactions = ConcurrentHashMap.newKeySet();
+
   //
   // Service management
   //
@@ -54,12 +99,33 @@ public class JenniteVCFStoreService implements VCFStoreService {
   @Override
   public void start() {
     // do init stuff
+    executor = Executors.newFixedThreadPool(getIntProperty("threads", Runtime.getRuntime().availableProcessors()));
+    ingestExecutor = Executors.newFixedThreadPool(getIntProperty("ingest.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)));
+    exportExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("jennite-vcf-export-", 0).factory());
+    compactionExecutor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "jennite-vcf-compaction"));
+    copyPermits = new Semaphore(getIntProperty("ingest.copies", 2), true);
+    ioScheduler = JenniteVCFIOScheduler.newScheduler(properties);
+    workArea = JenniteVCFWorkArea.newWorkArea(properties);
+    workArea.start();
+    genotypeCache = new JenniteVCFGenotypeCache(getIntProperty("genotypes.cache.max.size", 64) * 1024L * 1024L);
     running = true;
+    deleteSnapshots();
   }
 
   @Override
   public void stop() {
     running = false;
+    if (executor != null) executor.shutdownNow();
+    executor = null;
+    if (ingestExecutor != null) ingestExecutor.shutdownNow();
+    ingestExecutor = null;
+    if (exportExecutor != null) exportExecutor.shutdownNow();
+    exportExecutor = null;
+    if (compactionExecutor != null) compactionExecutor.shutdownNow();
+    compactionExecutor = null;
+    compactions.clear();
+    if (workArea != null) workArea.stop();
+    workArea = null;
   }
 
   //
@@ -71,36 +137,51 @@ public class JenniteVCFStoreService implements VCFStoreService {
     List<String> names = new ArrayList<>();
     File[] children = getDataFolder().listFiles(File::isDirectory);
     if (children == null) return names;
-    for (File child : children) names.add(child.getName());
+    for (File child : children) {
+      if (!child.getName().startsWith(".")) names.add(child.getName());
+    }
     return names;
   }
 
   @Override
   public boolean hasStore(String name) {
-    return getStoreFolder(name).exists();
+    return !isReservedName(name) && getStoreFolder(name).exists();
   }
 
   @Override
   public VCFStore getStore(String name) throws NoSuchElementException {
-    if (!getStoreFolder(name).exists()) throw new NoSuchElementException("No VCF store exists with name: " + name);
-    return new JenniteVCFStore(name, properties);
+    if (!hasStore(name)) throw new NoSuchElementException("No VCF store exists with name: " + name);
+    return new JenniteVCFStore(name, this);
   }
 
   @Override
   public VCFStore createStore(String name) {
+    if (isReservedName(name)) throw new IllegalArgumentException("Not a valid VCF store name: " + name);
     File storeDir = getStoreFolder(name);
     if(storeDir.exists()) throw new IllegalArgumentException("The VCF store already exists: " + name);
     storeDir.mkdirs();
-    return new JenniteVCFStore(name, properties);
+    return new JenniteVCFStore(name, this);
   }
 
   @Override
   public void deleteStore(String name) {
+    if (isReservedName(name)) throw new IllegalArgumentException("Not a valid VCF store name: " + name);
     try {
       FileUtil.delete(getStoreFolder(name));
     } catch (IOException e) {
       // ignore
     }
+    pruneBlobs();
+  }
+
+  /**
+   * Get the scheduler of the data disk transfers, that reports the current exports and ingestions throughput.
+   *
+   * @return
+   */
+  public JenniteVCFIOScheduler getIOScheduler() {
+    checkStatus();
+    return ioScheduler;
   }
 
   //
@@ -120,10 +201,219 @@ public class JenniteVCFStoreService implements VCFStoreService {
     return dataDir;
   }
 
+  /**
+   * Get the executor that runs the VCF export processing tasks (bcftools) that can be done concurrently.
+   *
+   * @return
+   */
+  ExecutorService getExecutor() {
+    checkStatus();
+    return executor;
+  }
+
+  /**
+   * Get the executor that runs the bulk VCF ingestions (bgzip, tabix, bcftools), so that their CPU usage is bounded and
+   * they do not delay the exports.
+   *
+   * @return
+   */
+  ExecutorService getIngestExecutor() {
+    checkStatus();
+    return ingestExecutor;
+  }
+
+  /**
+   * Get the executor that runs the published VCF exports, one virtual thread per export.
+   *
+   * @return
+   */
+  ExecutorService getExportExecutor() {
+    checkStatus();
+    return exportExecutor;
+  }
+
+  /**
+   * Run a VCF delta segments compaction in the background, unless one is already pending for this VCF. Compactions are
+   * run one at a time, apart from the processing tasks, and a compaction is run again as long as it reports that some
+   * delta segments are left.
+   *
+   * @param storeName
+   * @param vcfName
+   * @param compaction
+   */
+  void compact(String storeName, String vcfName, BooleanSupplier compaction) {
+    String key = storeName + File.separator + vcfName;
+    if (!running || !compactions.add(key)) return;
+    try {
+      compactionExecutor.execute(() -> {
+        boolean again = false;
+        try {
+          again = compaction.getAsBoolean();
+        } catch (RuntimeException e) {
+          log.error("VCF '{}' compaction failed", key, e);
+        } finally {
+          compactions.remove(key);
+        }
+        if (again) compact(storeName, vcfName, compaction);
+      });
+    } catch (RejectedExecutionException e) {
+      // service is stopping
+      compactions.remove(key);
+    }
+  }
+
+  /**
+   * Get the permits of concurrent VCF/BCF data copies, shared by all the stores so that bulk ingestions do not
+   * overload the data disk.
+   *
+   * @return
+   */
+  Semaphore getCopyPermits() {
+    checkStatus();
+    return copyPermits;
+  }
+
+  /**
+   * Get the folder of the processed VCF files that can be shared by content.
+   *
+   * @return
+   */
+  File getBlobsFolder() {
+    File blobsDir = new File(getDataFolder(), BLOBS_FOLDER);
+    if (!blobsDir.exists()) blobsDir.mkdirs();
+    return blobsDir;
+  }
+
+  /**
+   * Get the lock that guards the shared processed VCF files: linking them is shared, pruning them is exclusive.
+   *
+   * @return
+   */
+  ReadWriteLock getBlobsLock() {
+    return blobsLock;
+  }
+
+  /**
+   * Delete the shared processed VCF files that are not linked by any VCF anymore.
+   */
+  void pruneBlobs() {
+    blobsLock.writeLock().lock();
+    try {
+      File[] blobs = getBlobsFolder().listFiles(File::isDirectory);
+      if (blobs == null) return;
+      for (File blob : blobs) {
+        if (!isLinked(blob)) {
+          log.info("Deleting unused VCF blob: {}", blob.getName());
+          FileUtil.delete(blob);
+        }
+      }
+    } catch (IOException e) {
+      log.warn("Failure when deleting unused VCF blobs", e);
+    } finally {
+      blobsLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Create a folder to link the files of a VCF being read or to prepare a delta segment, in the data directory so that
+   * the files can be hard linked or moved to a VCF folder.
+   *
+   * @return
+   * @throws IOException
+   */
+  File newSnapshotFolder() throws IOException {
+    File snapshotsDir = new File(getDataFolder(), SNAPSHOTS_FOLDER);
+    if (!snapshotsDir.exists()) snapshotsDir.mkdirs();
+    return Files.createTempDirectory(snapshotsDir.toPath(), "snapshot_").toFile();
+  }
+
+  /**
+   * Get the manager of the export temporary files.
+   *
+   * @return
+   */
+  JenniteVCFWorkArea getWorkArea() {
+    checkStatus();
+    return workArea;
+  }
+
+  /**
+   * Get the cache of the genotypes decoded by the point queries, shared by the stores.
+   *
+   * @return
+   */
+  JenniteVCFGenotypeCache getGenotypeCache() {
+    checkStatus();
+    return genotypeCache;
+  }
+
+  /**
+   * Get the lock that guards the files of a VCF: VCF reads share it, while VCF writes and delta merges are exclusive.
+   *
+   * @param storeName
+   * @param vcfName
+   * @return
+   */
+  ReadWriteLock getLock(String storeName, String vcfName) {
+    return locks.computeIfAbsent(storeName + File.separator + vcfName, key -> new ReentrantReadWriteLock());
+  }
+
   //
   // Private methods
   //
 
+  /**
+   * Whether some of the blob files have other links than the blob's one.
+   *
+   * @param blob
+   * @return
+   */
+  private boolean isLinked(File blob) {
+    File[] files = blob.listFiles(File::isFile);
+    if (files == null) return false;
+    try {
+      for (File file : files) {
+        if ((Integer) Files.getAttribute(file.toPath(), "unix:nlink") > 1) return true;
+      }
+      return false;
+    } catch (UnsupportedOperationException | IllegalArgumentException | IOException e) {
+      // links cannot be counted, keep the blob
+      return true;
+    }
+  }
+
+  /**
+   * Whether the name is not one of a store folder: hidden folders (such as the blobs and the snapshots ones) are
+   * reserved, and the name must not point outside the data directory.
+   *
+   * @param name
+   * @return
+   */
+  private boolean isReservedName(String name) {
+    return name == null || name.trim().isEmpty() || name.startsWith(".") || name.contains("/") || name.contains(File.separator);
+  }
+
+  /**
+   * Delete the snapshots left by a previous execution.
+   */
+  private void deleteSnapshots() {
+    if (properties == null) return;
+    try {
+      FileUtil.delete(new File(getDataFolder(), SNAPSHOTS_FOLDER));
+    } catch (IOException e) {
+      log.warn("Failure when deleting VCF snapshots", e);
+    }
+  }
+
+  private int getIntProperty(String key, int defaultValue) {
+    if (properties == null) return defaultValue;
+    try {
+      return Math.max(1, Integer.parseInt(properties.getProperty(key, "" + defaultValue).trim()));
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
   private void checkStatus() {
     if (!running) throw new IllegalStateException("Jennite VCF store service has not been started");
     if (properties == null) throw new IllegalStateException("Jennite VCF store service has not been configured");
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.jennite.vcf;
+
+import org.obiba.core.util.FileUtil;
+import org.obiba.opal.spi.vcf.VCFStoreService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Temporary files of the VCF exports. A work file is deleted as soon as it is closed, and a janitor deletes the files
+ * that are not in use anymore when they are too old or when the work directory is too big. Files left by a previous
+ * execution are deleted at startup.
+ */
+class JenniteVCFWorkArea {
+
+  private static final Logger log = LoggerFactory.getLogger(JenniteVCFWorkArea.class);
+
+  private final File root;
+
+  private final long maxAge;
+
+  private final long maxSize;
+
+  private final Set<Path> inUse = ConcurrentHashMap.newKeySet();
+
+  private ScheduledExecutorService janitor;
+
+  /**
+   * @param root work directory
+   * @param maxAge maximum age of the files not in use, in milliseconds (0 is unlimited)
+   * @param maxSize maximum size of the work directory, in bytes (0 is unlimited)
+   */
+  JenniteVCFWorkArea(File root, long maxAge, long maxSize) {
+    this.root = root;
+    this.maxAge = maxAge;
+    this.maxSize = maxSize;
+  }
+
+  static JenniteVCFWorkArea newWorkArea(Properties properties) {
+    if (properties == null) properties = new Properties();
+    String workDirPath = properties.getProperty(VCFStoreService.WORK_DIR_PROPERTY);
+    File workDir = workDirPath == null ? new File(System.getProperty("java.io.tmpdir"), "jennite-vcf-store") : new File(workDirPath);
+    return new JenniteVCFWorkArea(workDir,
+        TimeUnit.MINUTES.toMillis(getLong(properties, "work.max.age", 60)),
+        getLong(properties, "work.max.size", 0) * 1024 * 1024);
+  }
+
+  /**
+   * Delete the files left by a previous execution and start the janitor.
+   */
+  void start() {
+    File[] children = root.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        try {
+          FileUtil.delete(child);
+        } catch (IOException e) {
+          log.warn("Failure when deleting orphan work file: {}", child.getAbsolutePath(), e);
+        }
+      }
+    }
+    janitor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "jennite-vcf-work-janitor");
+      thread.setDaemon(true);
+      return thread;
+    });
+    // a failing run must not cancel the next ones
+    janitor.scheduleWithFixedDelay(() -> {
+      try {
+        clean();
+      } catch (RuntimeException e) {
+        log.warn("Failure when cleaning work directory", e);
+      }
+    }, 1, 1, TimeUnit.MINUTES);
+  }
+
+  void stop() {
+    if (janitor != null) janitor.shutdownNow();
+    janitor = null;
+  }
+
+  /**
+   * Create a work file, to be closed when the transfer is completed.
+   *
+   * @param folder path of the folder, relative to the work directory
+   * @param prefix
+   * @param suffix
+   * @return
+   * @throws IOException
+   */
+  WorkFile newFile(String folder, String prefix, String suffix) throws IOException {
+    File workDir = new File(root, folder);
+    if (!workDir.exists()) workDir.mkdirs();
+    Path path = Files.createTempFile(workDir.toPath(), prefix, suffix);
+    inUse.add(path);
+    return new WorkFile(path);
+  }
+
+  /**
+   * Delete the files that are not in use, the ones that are too old and then the oldest ones until the work directory
+   * is not too big.
+   */
+  void clean() {
+    if (!root.exists()) return;
+    Map<Path, BasicFileAttributes> attributes = new HashMap<>();
+    try {
+      Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+          if (attrs.isRegularFile()) attributes.put(file, attrs);
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException exc) {
+          // deleted in the meantime
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } catch (IOException e) {
+      log.warn("Failure when listing work files", e);
+      return;
+    }
+    List<Path> candidates = attributes.keySet().stream()
+        .sorted(Comparator.comparing(file -> attributes.get(file).lastModifiedTime()))
+        .collect(Collectors.toList());
+    long size = attributes.values().stream().mapToLong(BasicFileAttributes::size).sum();
+    long now = System.currentTimeMillis();
+    for (Path file : candidates) {
+      if (inUse.contains(file)) continue;
+      boolean tooOld = maxAge > 0 && now - attributes.get(file).lastModifiedTime().toMillis() > maxAge;
+      boolean tooBig = maxSize > 0 && size > maxSize;
+      if (!tooOld && !tooBig) continue;
+      try {
+        Files.deleteIfExists(file);
+        size -= attributes.get(file).size();
+        log.info("Deleted unused work file: {}", file);
+      } catch (IOException e) {
+        log.warn("Failure when deleting unused work file: {}", file, e);
+      }
+    }
+    if (maxSize > 0 && size > maxSize) log.warn("Work directory size exceeds {} bytes with files in use", maxSize);
+  }
+
+  private static long getLong(Properties properties, String key, long defaultValue) {
+    try {
+      return Long.parseLong(properties.getProperty(key, "" + defaultValue).trim());
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * A work file that is deleted when closed.
+   */
+  class WorkFile implements Closeable {
+
+    private final Path path;
+
+    private WorkFile(Path path) {
+      this.path = path;
+    }
+
+    File getFile() {
+      return path.toFile();
+    }
+
+    @Override
+    public void close() {
+      try {
+        Files.deleteIfExists(path);
+      } catch (IOException e) {
+        log.warn("Failure when deleting work file: {}", path, e);
+      } finally {
+        inUse.remove(path);
+      }
+    }
+  }
+}
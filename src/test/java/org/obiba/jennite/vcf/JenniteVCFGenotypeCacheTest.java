@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.jennite.vcf;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class JenniteVCFGenotypeCacheTest {
+
+  private static final List<String> SAMPLES = Arrays.asList("S1", "S2");
+
+  @Test
+  public void testRowSize() {
+    JenniteVCFGenotypeCache.Row row = new JenniteVCFGenotypeCache.Row(new byte[1000], null);
+    JenniteVCFGenotypeCache.Row rowWithDosages = new JenniteVCFGenotypeCache.Row(new byte[1000], new float[1000]);
+    assertThat(rowWithDosages.getSize() - row.getSize()).isEqualTo(4000L);
+    assertThat(row.getSize()).isGreaterThan(1000L);
+  }
+
+  @Test
+  public void testGetPut() {
+    JenniteVCFGenotypeCache cache = new JenniteVCFGenotypeCache(1024 * 1024);
+    JenniteVCFGenotypeCache.Row row = newRow(100);
+    cache.put("foo/chr1", SAMPLES, "1:100", row);
+    assertThat(cache.get("foo/chr1", SAMPLES, "1:100")).isEqualTo(row);
+    assertThat(cache.get("foo/chr1", SAMPLES, "1:200")).isNull();
+    assertThat(cache.get("foo/chr2", SAMPLES, "1:100")).isNull();
+    assertThat(cache.get("foo/chr1", Arrays.asList("S2", "S1"), "1:100")).isNull();
+    assertThat(cache.getSize()).isEqualTo(row.getSize());
+
+    // replaced row is not counted twice
+    JenniteVCFGenotypeCache.Row other = newRow(200);
+    cache.put("foo/chr1", SAMPLES, "1:100", other);
+    assertThat(cache.get("foo/chr1", SAMPLES, "1:100")).isEqualTo(other);
+    assertThat(cache.getSize()).isEqualTo(other.getSize());
+  }
+
+  @Test
+  public void testEvictLeastRecentlyUsed() {
+    long rowSize = newRow(1000).getSize();
+    JenniteVCFGenotypeCache cache = new JenniteVCFGenotypeCache(3 * rowSize);
+    cache.put("foo/chr1", SAMPLES, "1:100", newRow(1000));
+    cache.put("foo/chr1", SAMPLES, "1:200", newRow(1000));
+    cache.put("foo/chr1", SAMPLES, "1:300", newRow(1000));
+    assertThat(cache.get("foo/chr1", SAMPLES, "1:100")).isNotNull();
+    cache.put("foo/chr1", SAMPLES, "1:400", newRow(1000));
+    assertThat(cache.get("foo/chr1", SAMPLES, "1:100")).isNotNull();
+    assertThat(cache.get("foo/chr1", SAMPLES, "1:200")).isNull();
+    assertThat(cache.get("foo/chr1", SAMPLES, "1:300")).isNotNull();
+    assertThat(cache.get("foo/chr1", SAMPLES, "1:400")).isNotNull();
+    assertThat(cache.getSize()).isEqualTo(3 * rowSize);
+  }
+
+  @Test
+  public void testEvictBySize() {
+    long smallSize = newRow(100).getSize();
+    JenniteVCFGenotypeCache cache = new JenniteVCFGenotypeCache(10 * smallSize);
+    for (int i = 0; i < 10; i++) cache.put("foo/chr1", SAMPLES, "1:" + i, newRow(100));
+    // a wide row evicts several narrow ones
+    JenniteVCFGenotypeCache.Row wide = newRow(4 * 100 + 100);
+    cache.put("foo/chr1", SAMPLES, "2:1", wide);
+    assertThat(cache.get("foo/chr1", SAMPLES, "2:1")).isEqualTo(wide);
+    assertThat(cache.getSize()).isLessThanOrEqualTo(10 * smallSize);
+    assertThat(cache.get("foo/chr1", SAMPLES, "1:0")).isNull();
+    assertThat(cache.get("foo/chr1", SAMPLES, "1:9")).isNotNull();
+  }
+
+  @Test
+  public void testRowBiggerThanCache() {
+    JenniteVCFGenotypeCache cache = new JenniteVCFGenotypeCache(1000);
+    cache.put("foo/chr1", SAMPLES, "1:100", newRow(10));
+    cache.put("foo/chr1", SAMPLES, "1:200", newRow(10000));
+    assertThat(cache.get("foo/chr1", SAMPLES, "1:200")).isNull();
+    assertThat(cache.get("foo/chr1", SAMPLES, "1:100")).isNotNull();
+  }
+
+  @Test
+  public void testInvalidate() {
+    JenniteVCFGenotypeCache cache = new JenniteVCFGenotypeCache(1024 * 1024);
+    JenniteVCFGenotypeCache.Row row = newRow(100);
+    cache.put("foo/chr1", SAMPLES, "1:100", newRow(100));
+    cache.put("foo/chr1", SAMPLES, "1:200", newRow(100));
+    cache.put("foo/chr2", SAMPLES, "2:100", row);
+    cache.invalidate("foo/chr1");
+    assertThat(cache.get("foo/chr1", SAMPLES, "1:100")).isNull();
+    assertThat(cache.get("foo/chr1", SAMPLES, "1:200")).isNull();
+    assertThat(cache.get("foo/chr2", SAMPLES, "2:100")).isEqualTo(row);
+    assertThat(cache.getSize()).isEqualTo(row.getSize());
+  }
+
+  private static JenniteVCFGenotypeCache.Row newRow(int samplesCount) {
+    return new JenniteVCFGenotypeCache.Row(new byte[samplesCount], null);
+  }
+}
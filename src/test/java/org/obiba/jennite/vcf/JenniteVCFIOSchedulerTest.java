@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.jennite.vcf;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class JenniteVCFIOSchedulerTest {
+
+  @Test
+  public void testTransfer() throws IOException {
+    JenniteVCFIOScheduler scheduler = new JenniteVCFIOScheduler(0, 0.5, 0, 0);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    long count = scheduler.transfer(new ByteArrayInputStream(new byte[200000]), out, JenniteVCFIOScheduler.IOClass.FOREGROUND);
+    assertThat(count).isEqualTo(200000);
+    assertThat(out.size()).isEqualTo(200000);
+    assertThat(scheduler.getBytes(JenniteVCFIOScheduler.IOClass.FOREGROUND)).isEqualTo(200000);
+    assertThat(scheduler.getBytes(JenniteVCFIOScheduler.IOClass.BACKGROUND)).isEqualTo(0);
+  }
+
+  @Test
+  public void testTransferRate() throws IOException {
+    JenniteVCFIOScheduler scheduler = new JenniteVCFIOScheduler(0, 0.5, 200000, 0);
+    long start = System.nanoTime();
+    scheduler.transfer(new ByteArrayInputStream(new byte[300000]), new ByteArrayOutputStream(), JenniteVCFIOScheduler.IOClass.FOREGROUND);
+    // the bucket starts empty: 300000 bytes at 200000 bytes/s take 1.5s
+    assertThat((System.nanoTime() - start) / 1000000).isGreaterThanOrEqualTo(1200);
+  }
+
+  @Test
+  public void testThrottleRate() throws IOException {
+    JenniteVCFIOScheduler scheduler = new JenniteVCFIOScheduler(0, 0.5, 0, 200000);
+    long start = System.nanoTime();
+    try (InputStream in = scheduler.throttle(new ByteArrayInputStream(new byte[300000]), JenniteVCFIOScheduler.IOClass.BACKGROUND)) {
+      in.transferTo(new ByteArrayOutputStream());
+    }
+    assertThat((System.nanoTime() - start) / 1000000).isGreaterThanOrEqualTo(1200);
+    assertThat(scheduler.getBytes(JenniteVCFIOScheduler.IOClass.BACKGROUND)).isEqualTo(300000);
+  }
+
+  @Test
+  public void testBackgroundShare() {
+    JenniteVCFIOScheduler scheduler = new JenniteVCFIOScheduler(1000000, 0.75, 0, 0);
+    assertThat(scheduler.getRate(JenniteVCFIOScheduler.IOClass.FOREGROUND)).isEqualTo(0);
+    assertThat(scheduler.getRate(JenniteVCFIOScheduler.IOClass.BACKGROUND)).isEqualTo(1000000);
+    JenniteVCFIOScheduler.Registration export = scheduler.foreground();
+    JenniteVCFIOScheduler.Registration other = scheduler.foreground();
+    assertThat(scheduler.getRate(JenniteVCFIOScheduler.IOClass.BACKGROUND)).isEqualTo(250000);
+    export.close();
+    export.close();
+    assertThat(scheduler.getRate(JenniteVCFIOScheduler.IOClass.BACKGROUND)).isEqualTo(250000);
+    other.close();
+    assertThat(scheduler.getRate(JenniteVCFIOScheduler.IOClass.BACKGROUND)).isEqualTo(1000000);
+  }
+
+  @Test
+  public void testBackgroundShareWithRate() {
+    JenniteVCFIOScheduler scheduler = new JenniteVCFIOScheduler(1000000, 0.5, 0, 800000);
+    assertThat(scheduler.getRate(JenniteVCFIOScheduler.IOClass.BACKGROUND)).isEqualTo(800000);
+    try (JenniteVCFIOScheduler.Registration export = scheduler.foreground()) {
+      assertThat(scheduler.getRate(JenniteVCFIOScheduler.IOClass.BACKGROUND)).isEqualTo(500000);
+    }
+    assertThat(scheduler.getRate(JenniteVCFIOScheduler.IOClass.BACKGROUND)).isEqualTo(800000);
+  }
+
+  @Test
+  public void testBackgroundProgress() {
+    JenniteVCFIOScheduler scheduler = new JenniteVCFIOScheduler(1000000, 1, 0, 0);
+    try (JenniteVCFIOScheduler.Registration export = scheduler.foreground()) {
+      assertThat(scheduler.getRate(JenniteVCFIOScheduler.IOClass.BACKGROUND)).isEqualTo(64 * 1024);
+    }
+  }
+
+  @Test
+  public void testNewScheduler() {
+    Properties properties = new Properties();
+    properties.setProperty("io.bandwidth", "1000000");
+    properties.setProperty("io.export.share", "not a number");
+    properties.setProperty("io.export.rate", "300000");
+    JenniteVCFIOScheduler scheduler = JenniteVCFIOScheduler.newScheduler(properties);
+    assertThat(scheduler.getRate(JenniteVCFIOScheduler.IOClass.FOREGROUND)).isEqualTo(300000);
+    try (JenniteVCFIOScheduler.Registration export = scheduler.foreground()) {
+      assertThat(scheduler.getRate(JenniteVCFIOScheduler.IOClass.BACKGROUND)).isEqualTo(500000);
+    }
+  }
+}
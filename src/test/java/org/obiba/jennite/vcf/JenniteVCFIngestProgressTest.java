@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.jennite.vcf;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class JenniteVCFIngestProgressTest {
+
+  @Test
+  public void testTrack() throws IOException {
+    JenniteVCFIngestProgress.FileProgress file = new JenniteVCFIngestProgress().add("chr1.vcf");
+    try (InputStream in = file.track(new ByteArrayInputStream(new byte[1000]))) {
+      assertThat(in.read()).isEqualTo(0);
+      assertThat(in.read(new byte[100])).isEqualTo(100);
+      assertThat(in.readAllBytes().length).isEqualTo(899);
+    }
+    assertThat(file.getBytes()).isEqualTo(1000L);
+  }
+
+  @Test
+  public void testAggregation() throws IOException {
+    JenniteVCFIngestProgress progress = new JenniteVCFIngestProgress();
+    JenniteVCFIngestProgress.FileProgress done = progress.add("chr1.vcf");
+    JenniteVCFIngestProgress.FileProgress failed = progress.add("chr2.vcf");
+    JenniteVCFIngestProgress.FileProgress running = progress.add("chr3.vcf");
+    assertThat(running.getStage()).isEqualTo(JenniteVCFIngestProgress.Stage.QUEUED);
+
+    read(done, 100);
+    done.stage(JenniteVCFIngestProgress.Stage.DONE);
+    read(failed, 20);
+    failed.failed(new IOException("disk full"));
+    running.stage(JenniteVCFIngestProgress.Stage.COPY);
+    read(running, 30);
+
+    assertThat(progress.getFiles()).hasSize(3);
+    assertThat(progress.getCompletedCount()).isEqualTo(1L);
+    assertThat(progress.getFailedCount()).isEqualTo(1L);
+    assertThat(progress.getBytes()).isEqualTo(150L);
+    assertThat(failed.getStage()).isEqualTo(JenniteVCFIngestProgress.Stage.FAILED);
+    assertThat(failed.getError()).isEqualTo("disk full");
+    assertThat(progress.isFinished()).isFalse();
+    assertThat(progress.toString()).startsWith("1/3 VCF files ingested (1 failed), 150 bytes");
+
+    progress.finish();
+    assertThat(progress.isFinished()).isTrue();
+    assertThat(progress.getThroughput()).isGreaterThanOrEqualTo(0L);
+  }
+
+  private static void read(JenniteVCFIngestProgress.FileProgress file, int size) throws IOException {
+    try (InputStream in = file.track(new ByteArrayInputStream(new byte[size]))) {
+      in.readAllBytes();
+    }
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.jennite.vcf;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class JenniteVCFPublisherTest {
+
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  private static final Executor THREADS = runnable -> new Thread(runnable).start();
+
+  @Test
+  public void testDemand() throws InterruptedException {
+    JenniteVCFPublisher publisher = new JenniteVCFPublisher(out -> out.write(new byte[5 * CHUNK_SIZE + 10]), THREADS);
+    TestSubscriber subscriber = new TestSubscriber(2);
+    publisher.subscribe(subscriber);
+    waitFor(() -> subscriber.chunks.get() == 2);
+    // the export waits for more demand
+    Thread.sleep(200);
+    assertThat(subscriber.chunks.get()).isEqualTo(2);
+    assertThat(subscriber.done.getCount()).isEqualTo(1L);
+
+    subscriber.subscription.request(3);
+    waitFor(() -> subscriber.chunks.get() == 5);
+    Thread.sleep(200);
+    assertThat(subscriber.chunks.get()).isEqualTo(5);
+    assertThat(subscriber.done.getCount()).isEqualTo(1L);
+
+    subscriber.subscription.request(Long.MAX_VALUE);
+    assertThat(subscriber.done.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(subscriber.chunks.get()).isEqualTo(6);
+    assertThat(subscriber.bytes.get()).isEqualTo(5L * CHUNK_SIZE + 10);
+    assertThat(subscriber.completed).isTrue();
+    assertThat(subscriber.error.get()).isNull();
+  }
+
+  @Test
+  public void testRegistration() throws InterruptedException {
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger runningWhileWriting = new AtomicInteger();
+    JenniteVCFPublisher publisher = new JenniteVCFPublisher(out -> {
+      runningWhileWriting.set(running.get());
+      out.write(new byte[3 * CHUNK_SIZE]);
+    }, THREADS, () -> {
+      running.incrementAndGet();
+      AtomicBoolean closed = new AtomicBoolean();
+      return () -> {
+        if (closed.compareAndSet(false, true)) running.decrementAndGet();
+      };
+    });
+    TestSubscriber subscriber = new TestSubscriber(1);
+    publisher.subscribe(subscriber);
+    waitFor(() -> subscriber.chunks.get() == 1);
+    // the export waits for more demand, without being registered
+    waitFor(() -> running.get() == 0);
+    assertThat(runningWhileWriting.get()).isEqualTo(1);
+
+    subscriber.subscription.request(Long.MAX_VALUE);
+    assertThat(subscriber.done.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(subscriber.completed).isTrue();
+    assertThat(running.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void testInvalidRequest() throws InterruptedException {
+    JenniteVCFPublisher publisher = new JenniteVCFPublisher(out -> out.write(new byte[CHUNK_SIZE]), THREADS);
+    TestSubscriber subscriber = new TestSubscriber(0);
+    publisher.subscribe(subscriber);
+    assertThat(subscriber.done.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(subscriber.error.get()).isInstanceOf(IllegalArgumentException.class);
+    assertThat(subscriber.chunks.get()).isEqualTo(0);
+    assertThat(subscriber.completed).isFalse();
+  }
+
+  @Test
+  public void testCancel() throws InterruptedException {
+    CountDownLatch stopped = new CountDownLatch(1);
+    AtomicReference<Throwable> exportError = new AtomicReference<>();
+    JenniteVCFPublisher publisher = new JenniteVCFPublisher(out -> {
+      try {
+        while (true) out.write(new byte[1024]);
+      } catch (IOException e) {
+        exportError.set(e);
+        throw e;
+      } finally {
+        stopped.countDown();
+      }
+    }, THREADS);
+    TestSubscriber subscriber = new TestSubscriber(1) {
+      @Override
+      public void onNext(ByteBuffer item) {
+        super.onNext(item);
+        subscription.cancel();
+      }
+    };
+    publisher.subscribe(subscriber);
+    assertThat(stopped.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(exportError.get()).isInstanceOf(IOException.class);
+    assertThat(subscriber.chunks.get()).isEqualTo(1);
+    // no signal after cancellation
+    assertThat(subscriber.done.getCount()).isEqualTo(1L);
+  }
+
+  @Test
+  public void testExportError() throws InterruptedException {
+    JenniteVCFPublisher publisher = new JenniteVCFPublisher(out -> {
+      throw new IOException("export failed");
+    }, THREADS);
+    TestSubscriber subscriber = new TestSubscriber(1);
+    publisher.subscribe(subscriber);
+    assertThat(subscriber.done.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(subscriber.error.get()).isInstanceOf(IOException.class);
+    assertThat(subscriber.completed).isFalse();
+  }
+
+  @Test
+  public void testRejectedExport() {
+    JenniteVCFPublisher publisher = new JenniteVCFPublisher(out -> out.write(1), runnable -> {
+      throw new RejectedExecutionException("no more threads");
+    });
+    TestSubscriber subscriber = new TestSubscriber(1);
+    publisher.subscribe(subscriber);
+    assertThat(subscriber.done.getCount()).isEqualTo(0L);
+    assertThat(subscriber.error.get()).isInstanceOf(RejectedExecutionException.class);
+  }
+
+  private static void waitFor(Condition condition) throws InterruptedException {
+    long timeout = System.currentTimeMillis() + 5000;
+    while (!condition.isMet()) {
+      if (System.currentTimeMillis() > timeout) throw new AssertionError("Condition not met in time");
+      Thread.sleep(10);
+    }
+  }
+
+  private interface Condition {
+    boolean isMet();
+  }
+
+  private static class TestSubscriber implements Flow.Subscriber<ByteBuffer> {
+
+    private final long initialRequest;
+
+    private final AtomicInteger chunks = new AtomicInteger();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private volatile boolean completed = false;
+
+    protected Flow.Subscription subscription;
+
+    private TestSubscriber(long initialRequest) {
+      this.initialRequest = initialRequest;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+      subscription.request(initialRequest);
+    }
+
+    @Override
+    public void onNext(ByteBuffer item) {
+      chunks.incrementAndGet();
+      bytes.addAndGet(item.remaining());
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      error.set(throwable);
+      done.countDown();
+    }
+
+    @Override
+    public void onComplete() {
+      completed = true;
+      done.countDown();
+    }
+  }
+}
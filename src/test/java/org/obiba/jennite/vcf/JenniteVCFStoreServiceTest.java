@@ -19,6 +19,7 @@ import org.obiba.opal.spi.vcf.VCFStoreService;
 import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.NoSuchElementException;
 import java.util.Properties;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -62,6 +63,31 @@ public class JenniteVCFStoreServiceTest {
     assertThat(stores.iterator().next()).isEqualTo("foo");
   }
 
+  @Test
+  public void testReservedStoreNames() {
+    VCFStoreService service = createStoreService();
+    ((JenniteVCFStoreService) service).getBlobsFolder();
+    assertThat(service.hasStore(".blobs")).isFalse();
+    assertThat(service.getStoreNames().isEmpty()).isTrue();
+  }
+
+  @Test(expected = NoSuchElementException.class)
+  public void testGetReservedStore() {
+    VCFStoreService service = createStoreService();
+    ((JenniteVCFStoreService) service).getBlobsFolder();
+    service.getStore(".blobs");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCreateReservedStore() {
+    createStoreService().createStore(".snapshots");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDeleteReservedStore() {
+    createStoreService().deleteStore(".blobs");
+  }
+
   private VCFStoreService createStoreService() {
     JenniteVCFStoreService service = new JenniteVCFStoreService();
     service.configure(getDefaultProperties());
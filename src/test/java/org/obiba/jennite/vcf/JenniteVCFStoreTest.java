@@ -0,0 +1,806 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.jennite.vcf;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.obiba.core.util.FileUtil;
+import org.obiba.opal.spi.vcf.VCFStore;
+import org.obiba.opal.spi.vcf.VCFStoreException;
+import org.obiba.opal.spi.vcf.VCFStoreService;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class JenniteVCFStoreTest {
+
+  private static final File DATA_DIR = new File("target" + File.separator + "test-vcf-stores");
+
+  private static final File TOOLS_DIR = new File(DATA_DIR, "tools");
+
+  /**
+   * Fake bcftools, that handles plain text VCFs made of a '#' header line with the sample names and of the records.
+   */
+  private static final String BCFTOOLS = """
+      #!/bin/sh
+      dir=$(dirname "$0")
+      echo "bcftools $*" >> "$dir/calls.log"
+      cmd=$1; shift
+      out=; header=; overlaps=; inputs=; list=; format=
+      while [ $# -gt 0 ]; do
+        case "$1" in
+          --output-file) out=$2; shift 2;;
+          --samples-file) list=$2; shift 2;;
+          --format) format=$2; shift 2;;
+          --output-type|--rm-dups|--regions-file|--targets-file) shift 2;;
+          --header-only) header=1; shift;;
+          --allow-overlaps) overlaps=1; shift;;
+          -) inputs="$inputs -"; shift;;
+          -*) shift;;
+          *) inputs="$inputs $1"; shift;;
+        esac
+      done
+      emit() { if [ -n "$out" ]; then cat > "$out"; else cat; fi; }
+      samples() { head -n 1 "$1" | cut -c2- | tr '\t' '\n' | grep -v '^$'; }
+      case $cmd in
+        query)
+          if [ -z "$format" ]; then
+            for f in $inputs; do samples "$f"; done
+          else
+            # genotypes of the listed samples, in the list order, unknown samples are an error
+            cat $inputs | awk -F '\t' -v list="$list" '
+              NR == 1 { sub(/^#/, ""); for (i = 1; i <= NF; i++) col[$i] = i + 2
+                while ((getline s < list) > 0) { if (!(s in col)) exit 1; order[++n] = col[s] }; next }
+              { line = $1 "\t" $2; for (k = 1; k <= n; k++) line = line "\t" $(order[k]); print line }' || exit 1
+          fi;;
+        stats)
+          for f in $inputs; do
+            printf 'SN\t0\tnumber of samples:\t%s\n' "$(samples "$f" | wc -l | tr -d ' ')"
+            printf 'SN\t0\tnumber of records:\t%s\n' "$(grep -vc '^#' "$f")"
+          done;;
+        view)
+          if [ -n "$header" ]; then head -n 1 $inputs; else cat $inputs | emit; fi;;
+        concat|merge)
+          for f in $inputs; do
+            [ "$f" = - ] && continue
+            if grep -q SLOW "$f"; then touch "$dir/merging"; sleep 2; fi
+            if grep -q FAIL "$f"; then echo partial | emit; exit 1; fi
+          done
+          first=$(echo $inputs | cut -d' ' -f1)
+          if [ $cmd = merge ]; then
+            { printf '#'; for f in $inputs; do samples "$f"; done | paste -s -d '\t' -; grep -v '^#' "$first"; } | emit
+          elif [ -n "$overlaps" ]; then
+            { head -n 1 "$first"; cat $inputs | grep -v '^#' | awk '!seen[$0]++' | sort -k1,1 -k2,2n; } | emit
+          else
+            { head -n 1 "$first"; cat $inputs | grep -v '^#'; } | emit
+          fi;;
+        *) exit 1;;
+      esac
+      exit 0
+      """;
+
+  private static final String BGZIP = """
+      #!/bin/sh
+      echo "bgzip $*" >> "$(dirname "$0")/calls.log"
+      for f; do case $f in -*) ;; *) mv "$f" "$f.gz";; esac; done
+      """;
+
+  private static final String TABIX = """
+      #!/bin/sh
+      echo "tabix $*" >> "$(dirname "$0")/calls.log"
+      fmt=vcf
+      while [ $# -gt 1 ]; do case $1 in -p) fmt=$2; shift 2;; *) shift;; esac; done
+      if [ $fmt = bcf ]; then touch "$1.csi"; else touch "$1.tbi"; fi
+      """;
+
+  private JenniteVCFStoreService service;
+
+  @Before
+  public void setUp() throws IOException {
+    FileUtil.delete(DATA_DIR);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (service != null) service.stop();
+    FileUtil.delete(DATA_DIR);
+  }
+
+  @Test
+  public void testParseGenotype() {
+    assertThat(JenniteVCFStore.parseGenotype("0/0")).isEqualTo((byte) 0);
+    assertThat(JenniteVCFStore.parseGenotype("0|1")).isEqualTo((byte) 1);
+    assertThat(JenniteVCFStore.parseGenotype("1/1")).isEqualTo((byte) 2);
+    assertThat(JenniteVCFStore.parseGenotype("2/3")).isEqualTo((byte) 2);
+    assertThat(JenniteVCFStore.parseGenotype("10/0")).isEqualTo((byte) 1);
+    assertThat(JenniteVCFStore.parseGenotype("1")).isEqualTo((byte) 1);
+  }
+
+  @Test
+  public void testParseMissingGenotype() {
+    assertThat(JenniteVCFStore.parseGenotype(".")).isEqualTo(JenniteVCFGenotypes.MISSING);
+    assertThat(JenniteVCFStore.parseGenotype("./.")).isEqualTo(JenniteVCFGenotypes.MISSING);
+    assertThat(JenniteVCFStore.parseGenotype("0/.")).isEqualTo(JenniteVCFGenotypes.MISSING);
+    assertThat(JenniteVCFStore.parseGenotype("")).isEqualTo(JenniteVCFGenotypes.MISSING);
+  }
+
+  @Test
+  public void testParseDosage() {
+    assertThat(JenniteVCFStore.parseDosage("0.5")).isEqualTo(0.5f);
+    assertThat(JenniteVCFStore.parseDosage("1.2,0.3")).isEqualTo(1.2f);
+    assertThat(Float.isNaN(JenniteVCFStore.parseDosage("."))).isTrue();
+  }
+
+  @Test
+  public void testGetColumns() {
+    // requested order differs from the VCF order, and some requested samples are not in the VCF
+    int[] columns = JenniteVCFStore.getColumns(Arrays.asList("S1", "S2", "S3", "S4"), Arrays.asList("S4", "X", "S2"));
+    assertThat(columns).isEqualTo(new int[]{2, 0});
+    assertThat(JenniteVCFStore.getColumns(Arrays.asList("S1", "S2"), Arrays.asList("X"))).isEqualTo(new int[0]);
+  }
+
+  @Test
+  public void testParseRow() {
+    int[] columns = JenniteVCFStore.getColumns(Arrays.asList("S1", "S2", "S3", "S4"), Arrays.asList("S4", "X", "S2"));
+    // samples file lists S2 then S4 (VCF order), which is the bcftools output order
+    String[] tokens = "1\t100\t0/1\t1/1\t0.9\t1.8".split("\t");
+    JenniteVCFGenotypeCache.Row row = JenniteVCFStore.parseRow(tokens, columns, 3, true);
+    assertThat(row.genotypes()).isEqualTo(new byte[]{2, JenniteVCFGenotypes.MISSING, 1});
+    assertThat(row.dosages()[0]).isEqualTo(1.8f);
+    assertThat(Float.isNaN(row.dosages()[1])).isTrue();
+    assertThat(row.dosages()[2]).isEqualTo(0.9f);
+
+    row = JenniteVCFStore.parseRow(tokens, columns, 3, false);
+    assertThat(row.genotypes()).isEqualTo(new byte[]{2, JenniteVCFGenotypes.MISSING, 1});
+    assertThat(row.dosages()).isNull();
+  }
+
+  @Test
+  public void testParseTruncatedRow() {
+    String[] tokens = "1\t100\t0/1".split("\t");
+    JenniteVCFGenotypeCache.Row row = JenniteVCFStore.parseRow(tokens, new int[]{1, 0}, 2, true);
+    assertThat(row.genotypes()).isEqualTo(new byte[]{JenniteVCFGenotypes.MISSING, 1});
+    assertThat(Float.isNaN(row.dosages()[0])).isTrue();
+    assertThat(Float.isNaN(row.dosages()[1])).isTrue();
+  }
+
+  @Test
+  public void testNewGenotypes() {
+    List<String> samples = Arrays.asList("S1", "S2");
+    List<String> positions = Arrays.asList("1:100", "1:200", "1:300");
+    Map<String, JenniteVCFGenotypeCache.Row> rows = new HashMap<>();
+    rows.put("1:100", new JenniteVCFGenotypeCache.Row(new byte[]{0, 1}, new float[]{0.1f, 1.1f}));
+    rows.put("1:200", new JenniteVCFGenotypeCache.Row(new byte[]{2, JenniteVCFGenotypes.MISSING}, null));
+    JenniteVCFGenotypes genotypes = JenniteVCFStore.newGenotypes(samples, positions, rows);
+    assertThat(genotypes.getSampleIds()).isEqualTo(samples);
+    assertThat(genotypes.getPositions()).isEqualTo(positions);
+    assertThat(genotypes.getGenotypes()).isEqualTo(new byte[]{0, 1, 2, JenniteVCFGenotypes.MISSING,
+        JenniteVCFGenotypes.MISSING, JenniteVCFGenotypes.MISSING});
+    assertThat(genotypes.getGenotype(1, 0)).isEqualTo((byte) 2);
+    assertThat(genotypes.hasDosages()).isTrue();
+    assertThat(genotypes.getDosage(0, 1)).isEqualTo(1.1f);
+    assertThat(Float.isNaN(genotypes.getDosage(1, 0))).isTrue();
+    assertThat(Float.isNaN(genotypes.getDosage(2, 1))).isTrue();
+  }
+
+  @Test
+  public void testNewGenotypesWithoutDosages() {
+    List<String> samples = Arrays.asList("S1");
+    Map<String, JenniteVCFGenotypeCache.Row> rows = new HashMap<>();
+    rows.put("1:100", new JenniteVCFGenotypeCache.Row(new byte[]{1}, null));
+    JenniteVCFGenotypes genotypes = JenniteVCFStore.newGenotypes(samples, Arrays.asList("1:100", "1:100"), rows);
+    assertThat(genotypes.getGenotypes()).isEqualTo(new byte[]{1, 1});
+    assertThat(genotypes.hasDosages()).isFalse();
+    assertThat(Float.isNaN(genotypes.getDosage(0, 0))).isTrue();
+  }
+
+  @Test
+  public void testCompareNaturally() {
+    List<String> names = new ArrayList<>(Arrays.asList("chr10", "chrX", "chr2", "chr1b", "chr1", "MT"));
+    names.sort(JenniteVCFStore::compareNaturally);
+    assertThat(names).containsExactly("MT", "chr1", "chr1b", "chr2", "chr10", "chrX");
+  }
+
+  @Test
+  public void testCheckSamplesCompatibility() {
+    Map<String, List<String>> vcfSamples = new LinkedHashMap<>();
+    vcfSamples.put("chr1", Arrays.asList("S1", "S2", "S3"));
+    vcfSamples.put("chr2", Arrays.asList("S1", "S2", "S3"));
+    JenniteVCFStore.checkSamplesCompatibility(vcfSamples, null);
+    JenniteVCFStore.checkSamplesCompatibility(vcfSamples, Arrays.asList("S3", "S1"));
+  }
+
+  @Test(expected = VCFStoreException.class)
+  public void testCheckSamplesCompatibilityOrder() {
+    Map<String, List<String>> vcfSamples = new LinkedHashMap<>();
+    vcfSamples.put("chr1", Arrays.asList("S1", "S2"));
+    vcfSamples.put("chr2", Arrays.asList("S2", "S1"));
+    JenniteVCFStore.checkSamplesCompatibility(vcfSamples, null);
+  }
+
+  @Test
+  public void testCheckSamplesCompatibilitySubset() {
+    // the samples that are exported are the same
+    Map<String, List<String>> vcfSamples = new LinkedHashMap<>();
+    vcfSamples.put("chr1", Arrays.asList("S1", "S2", "S3"));
+    vcfSamples.put("chr2", Arrays.asList("S1", "S3"));
+    JenniteVCFStore.checkSamplesCompatibility(vcfSamples, Arrays.asList("S1", "S3"));
+    try {
+      JenniteVCFStore.checkSamplesCompatibility(vcfSamples, Arrays.asList("S2", "S3"));
+      fail("Samples are not compatible");
+    } catch (VCFStoreException e) {
+      assertThat(e.getMessage()).contains("chr2");
+    }
+  }
+
+  @Test
+  public void testCheckSitesOnlyCompatibility() {
+    Map<String, List<String>> vcfSamples = new LinkedHashMap<>();
+    vcfSamples.put("chr1", Collections.emptyList());
+    vcfSamples.put("chr2", Collections.emptyList());
+    JenniteVCFStore.checkSamplesCompatibility(vcfSamples, null);
+    JenniteVCFStore.checkSamplesCompatibility(vcfSamples, Collections.emptyList());
+    try {
+      JenniteVCFStore.checkSamplesCompatibility(vcfSamples, Arrays.asList("S1"));
+      fail("No samples to be exported");
+    } catch (VCFStoreException e) {
+      assertThat(e.getMessage()).contains("chr1");
+    }
+  }
+
+  @Test
+  public void testReadVCFsInNaturalOrder() throws IOException {
+    VCFStore store = newService().createStore("foo");
+    store.writeVCF("chr10.vcf", vcf("#S1\tS2", "chr10\t100\t0/1\t1/1"));
+    store.writeVCF("chr2.vcf", vcf("#S1\tS2", "chr2\t100\t0/0\t0/1"));
+    store.writeVCF("chr1.vcf", vcf("#S1\tS2", "chr1\t100\t1/1\t0/0"));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ((JenniteVCFStore) store).readVCFs(null, VCFStore.Format.VCF, out, null);
+    assertThat(lines(out)).containsExactly("#S1\tS2", "chr1\t100\t1/1\t0/0", "chr2\t100\t0/0\t0/1",
+        "chr10\t100\t0/1\t1/1");
+  }
+
+  @Test
+  public void testReadSitesOnlyVCFs() throws IOException {
+    VCFStore store = newService().createStore("foo");
+    store.writeVCF("chr1.vcf", vcf("#", "chr1\t100"));
+    store.writeVCF("chr2.vcf", vcf("#", "chr2\t100"));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ((JenniteVCFStore) store).readVCFs(Arrays.asList("chr1", "chr2"), VCFStore.Format.VCF, out, null);
+    assertThat(lines(out)).containsExactly("#", "chr1\t100", "chr2\t100");
+  }
+
+  @Test
+  public void testReadVCFsConcatFailure() throws IOException {
+    VCFStore store = newService().createStore("foo");
+    store.writeVCF("chr1.vcf", vcf("#S1", "chr1\t100\t0/1"));
+    store.writeVCF("chr2.vcf", vcf("#S1", "chr2\t100\tFAIL"));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      ((JenniteVCFStore) store).readVCFs(Arrays.asList("chr1", "chr2"), VCFStore.Format.VCF, out, null);
+      fail("Concatenation should have failed");
+    } catch (VCFStoreException e) {
+      // nothing was sent
+      assertThat(out.size()).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void testAppendRecords() throws Exception {
+    JenniteVCFStore store = (JenniteVCFStore) newService().createStore("foo");
+    store.writeVCF("chr1.vcf", vcf("#S1\tS2", "chr1\t100\t0/1\t1/1", "chr1\t300\t0/0\t0/1"));
+    CountDownLatch compactions = blockCompactions();
+    store.appendVCF("chr1.vcf", vcf("#S1\tS2", "chr1\t200\t1/1\t1/1", "chr1\t300\t0/0\t0/1"));
+
+    File deltaFolder = new File(getVCFFolder("foo", "chr1"), "deltas" + File.separator + "000001");
+    assertThat(new File(deltaFolder, "data.vcf.gz").exists()).isTrue();
+    assertThat(loadProperties(new File(deltaFolder, "delta.properties")).getProperty("mode")).isEqualTo("RECORDS");
+    // exact duplicates are counted until the delta is merged
+    assertThat(store.getVCFSummary("chr1").getVariantsCount()).isEqualTo(4);
+    assertThat(store.getVCFSummary("chr1").getSampleIds()).containsExactly("S1", "S2");
+    // pending delta is merged on the fly
+    assertThat(read(store, "chr1")).containsExactly("#S1\tS2", "chr1\t100\t0/1\t1/1", "chr1\t200\t1/1\t1/1",
+        "chr1\t300\t0/0\t0/1");
+
+    compactions.countDown();
+    awaitCompactions();
+    assertThat(deltaFolder.exists()).isFalse();
+    assertThat(store.getVCFSummary("chr1").getVariantsCount()).isEqualTo(3);
+    assertThat(read(store, "chr1")).containsExactly("#S1\tS2", "chr1\t100\t0/1\t1/1", "chr1\t200\t1/1\t1/1",
+        "chr1\t300\t0/0\t0/1");
+  }
+
+  @Test
+  public void testAppendSamples() throws Exception {
+    JenniteVCFStore store = (JenniteVCFStore) newService().createStore("foo");
+    store.writeVCF("chr1.vcf", vcf("#S1\tS2", "chr1\t100\t0/1\t1/1"));
+    CountDownLatch compactions = blockCompactions();
+    store.appendVCF("chr1.vcf", vcf("#S3", "chr1\t100\t0/0"));
+
+    File deltaFolder = new File(getVCFFolder("foo", "chr1"), "deltas" + File.separator + "000001");
+    assertThat(loadProperties(new File(deltaFolder, "delta.properties")).getProperty("mode")).isEqualTo("SAMPLES");
+    assertThat(store.getVCFSummary("chr1").getSampleIds()).containsExactly("S1", "S2", "S3");
+    assertThat(store.getVCFSummary("chr1").getVariantsCount()).isEqualTo(1);
+    assertThat(store.getVCFSummary("chr1").getGenotypesCount()).isEqualTo(3);
+
+    compactions.countDown();
+    awaitCompactions();
+    assertThat(deltaFolder.exists()).isFalse();
+    assertThat(read(store, "chr1").get(0)).isEqualTo("#S1\tS2\tS3");
+    assertThat(store.getVCFSummary("chr1").getSampleIds()).containsExactly("S1", "S2", "S3");
+  }
+
+  @Test
+  public void testAppendOverlappingSamples() throws Exception {
+    JenniteVCFStore store = (JenniteVCFStore) newService().createStore("foo");
+    store.writeVCF("chr1.vcf", vcf("#S1\tS2", "chr1\t100\t0/1\t1/1"));
+    try {
+      store.appendVCF("chr1.vcf", vcf("#S2\tS3", "chr1\t100\t0/0\t0/1"));
+      fail("Samples are overlapping");
+    } catch (VCFStoreException e) {
+      // nothing was left
+      File[] deltas = new File(getVCFFolder("foo", "chr1"), "deltas").listFiles();
+      assertThat(deltas == null ? 0 : deltas.length).isEqualTo(0);
+      assertThat(new File(DATA_DIR, "data" + File.separator + ".snapshots").list()).isEmpty();
+      assertThat(store.getVCFSummary("chr1").getSampleIds()).containsExactly("S1", "S2");
+      assertThat(store.getVCFSummary("chr1").getVariantsCount()).isEqualTo(1);
+    }
+  }
+
+  @Test(expected = NoSuchElementException.class)
+  public void testAppendToMissingVCF() throws Exception {
+    newService().createStore("foo").writeVCF("chr1.vcf", vcf("#S1", "chr1\t100\t0/1"));
+    ((JenniteVCFStore) service.getStore("foo")).appendVCF("chr2.vcf", vcf("#S1", "chr2\t100\t0/1"));
+  }
+
+  @Test
+  public void testDeltaFolderNumbering() throws Exception {
+    JenniteVCFStore store = (JenniteVCFStore) newService().createStore("foo");
+    store.writeVCF("chr1.vcf", vcf("#S1", "chr1\t100\t0/1"));
+    blockCompactions();
+    store.appendVCF("chr1.vcf", vcf("#S1", "chr1\t200\t0/1"));
+    // incomplete delta segment folder is not pending, but it is not reused
+    File deltasFolder = new File(getVCFFolder("foo", "chr1"), "deltas");
+    assertThat(new File(deltasFolder, "000005").mkdirs()).isTrue();
+    store.appendVCF("chr1.vcf", vcf("#S1", "chr1\t300\t0/1"));
+    assertThat(new File(deltasFolder, "000001" + File.separator + "delta.properties").exists()).isTrue();
+    assertThat(new File(deltasFolder, "000006" + File.separator + "delta.properties").exists()).isTrue();
+    assertThat(store.getVCFSummary("chr1").getVariantsCount()).isEqualTo(3);
+    assertThat(read(store, "chr1")).containsExactly("#S1", "chr1\t100\t0/1", "chr1\t200\t0/1", "chr1\t300\t0/1");
+  }
+
+  @Test
+  public void testQuarantine() throws Exception {
+    JenniteVCFStore store = (JenniteVCFStore) newService().createStore("foo");
+    store.writeVCF("chr1.vcf", vcf("#S1\tS2", "chr1\t100\t0/1\t1/1"));
+    CountDownLatch compactions = blockCompactions();
+    store.appendVCF("chr1.vcf", vcf("#S3", "chr1\t100\tFAIL"));
+    assertThat(store.getVCFSummary("chr1").getSampleIds()).containsExactly("S1", "S2", "S3");
+
+    compactions.countDown();
+    awaitCompactions();
+    File vcfFolder = getVCFFolder("foo", "chr1");
+    assertThat(new File(vcfFolder, "deltas" + File.separator + "000001").exists()).isFalse();
+    String[] quarantined = new File(vcfFolder, "quarantine").list();
+    assertThat(quarantined).hasSize(1);
+    assertThat(quarantined[0]).startsWith("000001_");
+    // VCF is restored without the delta segment
+    assertThat(store.getVCFSummary("chr1").getSampleIds()).containsExactly("S1", "S2");
+    assertThat(store.getVCFSummary("chr1").getGenotypesCount()).isEqualTo(2);
+    assertThat(read(store, "chr1")).containsExactly("#S1\tS2", "chr1\t100\t0/1\t1/1");
+  }
+
+  @Test
+  public void testCompactionOfReplacedVCF() throws Exception {
+    JenniteVCFStore store = (JenniteVCFStore) newService().createStore("foo");
+    store.writeVCF("chr1.vcf", vcf("#S1", "chr1\t100\t0/1"));
+    CountDownLatch compactions = blockCompactions();
+    store.appendVCF("chr1.vcf", vcf("#S1", "chr1\t200\tSLOW"));
+    compactions.countDown();
+
+    // VCF is replaced while the delta segment is being merged
+    File merging = new File(TOOLS_DIR, "merging");
+    long timeout = System.currentTimeMillis() + 10000;
+    while (!merging.exists() && System.currentTimeMillis() < timeout) Thread.sleep(10);
+    assertThat(merging.exists()).isTrue();
+    store.writeVCF("chr1.vcf", vcf("#S1", "chr1\t500\t1/1"));
+    awaitCompactions();
+
+    assertThat(read(store, "chr1")).containsExactly("#S1", "chr1\t500\t1/1");
+    assertThat(store.getVCFSummary("chr1").getVariantsCount()).isEqualTo(1);
+    assertThat(new File(getVCFFolder("foo", "chr1"), "deltas").exists()).isFalse();
+  }
+
+  @Test
+  public void testReadVCFStatisticsWithoutLock() throws Exception {
+    JenniteVCFStore store = (JenniteVCFStore) newService().createStore("foo");
+    store.writeVCF("chr1.vcf", vcf("#S1", "chr1\t100\t0/1"));
+    CountDownLatch writing = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ByteArrayOutputStream stats = new ByteArrayOutputStream() {
+      @Override
+      public synchronized void write(byte[] b, int off, int len) {
+        writing.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        super.write(b, off, len);
+      }
+    };
+    Thread reader = new Thread(() -> {
+      try {
+        store.readVCFStatistics("chr1", stats);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    reader.start();
+    try {
+      assertThat(writing.await(10, TimeUnit.SECONDS)).isTrue();
+      // slow client does not block the VCF writes
+      Lock lock = service.getLock("foo", "chr1").writeLock();
+      assertThat(lock.tryLock(5, TimeUnit.SECONDS)).isTrue();
+      lock.unlock();
+    } finally {
+      release.countDown();
+      reader.join(10000);
+    }
+    assertThat(new String(stats.toByteArray(), StandardCharsets.UTF_8)).contains("number of records:\t1");
+  }
+
+  @Test
+  public void testIsVCFFileName() {
+    assertThat(JenniteVCFStore.isVCFFileName("chr1.vcf")).isTrue();
+    assertThat(JenniteVCFStore.isVCFFileName("chr1.vcf.gz")).isTrue();
+    assertThat(JenniteVCFStore.isVCFFileName("chr1.bcf")).isTrue();
+    assertThat(JenniteVCFStore.isVCFFileName("chr1.bcf.gz")).isTrue();
+    assertThat(JenniteVCFStore.isVCFFileName("chr1.vcf.gz.tbi")).isFalse();
+    assertThat(JenniteVCFStore.isVCFFileName("chr1.bcf.gz.csi")).isFalse();
+    assertThat(JenniteVCFStore.isVCFFileName("README.txt")).isFalse();
+  }
+
+  @Test
+  public void testWriteVCFs() throws IOException {
+    JenniteVCFStore store = (JenniteVCFStore) newService().createStore("foo");
+    Map<String, InputStream> vcfs = new LinkedHashMap<>();
+    vcfs.put("chr1.vcf", vcf("#S1", "chr1\t100\t0/1"));
+    vcfs.put("chr2.vcf", vcf("#S1", "chr2\t100\t1/1"));
+    JenniteVCFIngestProgress progress = new JenniteVCFIngestProgress();
+    store.writeVCFs(vcfs, progress);
+    assertThat(store.getVCFNames()).containsOnly("chr1", "chr2");
+    assertThat(progress.isFinished()).isTrue();
+    assertThat(progress.getCompletedCount()).isEqualTo(2L);
+    assertThat(progress.getFailedCount()).isEqualTo(0L);
+  }
+
+  @Test
+  public void testWriteVCFsWithSameName() throws IOException {
+    JenniteVCFStore store = (JenniteVCFStore) newService().createStore("foo");
+    Map<String, InputStream> vcfs = new LinkedHashMap<>();
+    vcfs.put("chr1.vcf", vcf("#S1", "chr1\t100\t0/1"));
+    vcfs.put("chr1.vcf.gz", vcf("#S1", "chr1\t100\t0/1"));
+    try {
+      store.writeVCFs(vcfs, new JenniteVCFIngestProgress());
+      fail("Files would overwrite each other");
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("chr1.vcf, chr1.vcf.gz");
+      assertThat(store.getVCFNames()).isEmpty();
+    }
+  }
+
+  @Test
+  public void testWriteVCFsFromDirectory() throws IOException {
+    JenniteVCFStore store = (JenniteVCFStore) newService().createStore("foo");
+    File source = new File(DATA_DIR, "source");
+    source.mkdirs();
+    Files.write(new File(source, "chr1.vcf").toPath(), Arrays.asList("#S1", "chr1\t100\t0/1"), StandardCharsets.UTF_8);
+    Files.write(new File(source, "chr2.vcf").toPath(), Arrays.asList("#S1", "chr2\t100\t0/1"), StandardCharsets.UTF_8);
+    Files.write(new File(source, "chr2.vcf.gz.tbi").toPath(), new byte[0]);
+    Files.write(new File(source, "README.txt").toPath(), Arrays.asList("not a VCF"), StandardCharsets.UTF_8);
+    JenniteVCFIngestProgress progress = new JenniteVCFIngestProgress();
+    store.writeVCFs(source, progress);
+    assertThat(store.getVCFNames()).containsOnly("chr1", "chr2");
+    assertThat(progress.getFiles()).hasSize(2);
+    assertThat(progress.getCompletedCount()).isEqualTo(2L);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testWriteVCFsFromDirectoryWithSameName() throws IOException {
+    JenniteVCFStore store = (JenniteVCFStore) newService().createStore("foo");
+    File source = new File(DATA_DIR, "source");
+    source.mkdirs();
+    Files.write(new File(source, "chr1.vcf").toPath(), Arrays.asList("#S1", "chr1\t100\t0/1"), StandardCharsets.UTF_8);
+    Files.write(new File(source, "chr1.bcf").toPath(), Arrays.asList("#S1", "chr1\t100\t0/1"), StandardCharsets.UTF_8);
+    store.writeVCFs(source, new JenniteVCFIngestProgress());
+  }
+
+  @Test
+  public void testWriteVCFsFromZipWithSameBaseName() throws IOException {
+    JenniteVCFStore store = (JenniteVCFStore) newService().createStore("foo");
+    File zip = new File(DATA_DIR, "source.zip");
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+      for (String entry : Arrays.asList("batch1/chr1.vcf", "batch2/chr1.vcf")) {
+        out.putNextEntry(new ZipEntry(entry));
+        out.write("#S1\nchr1\t100\t0/1\n".getBytes(StandardCharsets.UTF_8));
+        out.closeEntry();
+      }
+    }
+    try {
+      store.writeVCFs(zip, new JenniteVCFIngestProgress());
+      fail("Files would overwrite each other");
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("'chr1.vcf'");
+      assertThat(store.getVCFNames()).isEmpty();
+    }
+  }
+
+  @Test
+  public void testWriteVCFsWithError() throws IOException {
+    JenniteVCFStore store = (JenniteVCFStore) newService().createStore("foo");
+    Map<String, InputStream> vcfs = new LinkedHashMap<>();
+    vcfs.put("chr1.vcf", new InputStream() {
+      @Override
+      public int read() {
+        throw new OutOfMemoryError("no more memory");
+      }
+    });
+    vcfs.put("chr2.vcf", vcf("#S1", "chr2\t100\t1/1"));
+    JenniteVCFIngestProgress progress = new JenniteVCFIngestProgress();
+    try {
+      store.writeVCFs(vcfs, progress);
+      fail("Ingestion should have failed");
+    } catch (VCFStoreException e) {
+      assertThat(e.getMessage()).contains("chr1.vcf");
+    }
+    assertThat(progress.isFinished()).isTrue();
+    assertThat(progress.getFailedCount()).isEqualTo(1L);
+    assertThat(progress.getCompletedCount()).isEqualTo(1L);
+    JenniteVCFIngestProgress.FileProgress failed = progress.getFiles().iterator().next();
+    assertThat(failed.getStage()).isEqualTo(JenniteVCFIngestProgress.Stage.FAILED);
+    assertThat(failed.getError()).isEqualTo("no more memory");
+  }
+
+  @Test
+  public void testWriteSameContent() throws IOException {
+    Assume.assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("unix"));
+    newService();
+    VCFStore store1 = service.createStore("foo");
+    VCFStore store2 = service.createStore("bar");
+    store1.writeVCF("chr1.vcf", vcf("#S1\tS2", "chr1\t100\t0/1\t1/1"));
+    assertThat(calls()).isNotEmpty();
+    Files.delete(new File(TOOLS_DIR, "calls.log").toPath());
+
+    // processing is skipped, processed files are linked
+    store2.writeVCF("chrom1.vcf", vcf("#S1\tS2", "chr1\t100\t0/1\t1/1"));
+    assertThat(calls()).isEmpty();
+    File dataFile = new File(getVCFFolder("bar", "chrom1"), "data.vcf.gz");
+    assertThat((Integer) Files.getAttribute(dataFile.toPath(), "unix:nlink")).isEqualTo(3);
+    assertThat(store2.getVCFSummary("chrom1").getSampleIds()).containsExactly("S1", "S2");
+    assertThat(store2.getVCFSummary("chrom1").getVariantsCount()).isEqualTo(1);
+    assertThat(read(store2, "chrom1")).containsExactly("#S1\tS2", "chr1\t100\t0/1\t1/1");
+
+    // blob is kept as long as it is linked
+    File blobsFolder = new File(DATA_DIR, "data" + File.separator + ".blobs");
+    assertThat(blobsFolder.list()).hasSize(1);
+    store1.deleteVCF("chr1");
+    assertThat(blobsFolder.list()).hasSize(1);
+    assertThat((Integer) Files.getAttribute(dataFile.toPath(), "unix:nlink")).isEqualTo(2);
+    store2.deleteVCF("chrom1");
+    assertThat(blobsFolder.list()).isEmpty();
+  }
+
+  @Test
+  public void testReadGenotypes() throws IOException {
+    JenniteVCFStore store = (JenniteVCFStore) newService().createStore("foo");
+    store.writeVCF("chr1.vcf", vcf("#S1\tS2\tS3\tS4", "chr1\t100\t0/0\t0/1\t0/0\t1/1", "chr1\t200\t1/1\t0/0\t0/0\t0/1"));
+    // requested samples are not in the VCF order, and some are not in the VCF
+    List<String> samples = Arrays.asList("S4", "X", "S2");
+    JenniteVCFGenotypes genotypes = store.readGenotypes("chr1", samples, Arrays.asList("chr1:200", "chr1:100", "chr1:300"));
+    assertThat(genotypes.getSampleIds()).isEqualTo(samples);
+    assertThat(genotypes.getGenotypes()).isEqualTo(new byte[]{
+        1, JenniteVCFGenotypes.MISSING, 0,
+        2, JenniteVCFGenotypes.MISSING, 1,
+        JenniteVCFGenotypes.MISSING, JenniteVCFGenotypes.MISSING, JenniteVCFGenotypes.MISSING});
+    assertThat(genotypes.hasDosages()).isFalse();
+
+    // cached rows are the same
+    assertThat(store.readGenotypes("chr1", samples, Arrays.asList("chr1:200", "chr1:100", "chr1:300")).getGenotypes())
+        .isEqualTo(genotypes.getGenotypes());
+  }
+
+  @Test
+  public void testPublishVCFCancel() throws Exception {
+    Assume.assumeTrue(new File("/bin/sh").canExecute());
+    // fake bcftools that outputs some chunks and then hangs, without writing to the closed stream
+    File pidFile = new File(DATA_DIR, "bcftools.pid");
+    File bcftools = new File(DATA_DIR, "bcftools");
+    DATA_DIR.mkdirs();
+    Files.write(bcftools.toPath(), Arrays.asList("#!/bin/sh", "echo $$ > " + pidFile.getAbsolutePath(),
+        "yes | head -c 1000000", "exec sleep 600"), StandardCharsets.UTF_8);
+    assertThat(bcftools.setExecutable(true)).isTrue();
+
+    Properties properties = new Properties();
+    properties.setProperty(VCFStoreService.DATA_DIR_PROPERTY, DATA_DIR.getPath());
+    properties.setProperty("exec.bcftools", bcftools.getAbsolutePath());
+    JenniteVCFStoreService service = new JenniteVCFStoreService();
+    service.configure(properties);
+    service.start();
+    try {
+      VCFStore store = service.createStore("foo");
+      File vcfFolder = new File(DATA_DIR, "foo" + File.separator + "chr1");
+      vcfFolder.mkdirs();
+      Files.write(new File(vcfFolder, "data.vcf.gz").toPath(), new byte[0]);
+      Files.write(new File(vcfFolder, "data.vcf.gz.tbi").toPath(), new byte[0]);
+      Files.write(new File(vcfFolder, "samples.txt").toPath(), Arrays.asList("S1", "S2"), StandardCharsets.UTF_8);
+      Files.write(new File(vcfFolder, "vcf.properties").toPath(), new byte[0]);
+
+      CountDownLatch received = new CountDownLatch(1);
+      ((JenniteVCFStore) store).publishVCF("chr1", null, Arrays.asList("S1")).subscribe(new Flow.Subscriber<ByteBuffer>() {
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+          subscription.request(1);
+          new Thread(() -> {
+            try {
+              received.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            subscription.cancel();
+          }).start();
+        }
+
+        @Override
+        public void onNext(ByteBuffer item) {
+          received.countDown();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+      });
+      assertThat(received.await(10, TimeUnit.SECONDS)).isTrue();
+      long pid = Long.parseLong(new String(Files.readAllBytes(pidFile.toPath()), StandardCharsets.UTF_8).trim());
+      long timeout = System.currentTimeMillis() + 10000;
+      while (ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false) && System.currentTimeMillis() < timeout)
+        Thread.sleep(50);
+      assertThat(ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false)).isFalse();
+    } finally {
+      service.stop();
+    }
+  }
+
+  /**
+   * Start a service that uses the fake bcftools, bgzip and tabix.
+   *
+   * @return
+   * @throws IOException
+   */
+  private JenniteVCFStoreService newService() throws IOException {
+    Assume.assumeTrue(new File("/bin/sh").canExecute());
+    TOOLS_DIR.mkdirs();
+    Properties properties = new Properties();
+    properties.setProperty(VCFStoreService.DATA_DIR_PROPERTY, new File(DATA_DIR, "data").getPath());
+    properties.setProperty(VCFStoreService.WORK_DIR_PROPERTY, new File(DATA_DIR, "work").getPath());
+    properties.setProperty("version", "test");
+    properties.setProperty("exec.bcftools", writeTool("bcftools", BCFTOOLS));
+    properties.setProperty("exec.bgzip", writeTool("bgzip", BGZIP));
+    properties.setProperty("exec.tabix", writeTool("tabix", TABIX));
+    service = new JenniteVCFStoreService();
+    service.configure(properties);
+    service.start();
+    return service;
+  }
+
+  private static String writeTool(String name, String script) throws IOException {
+    File tool = new File(TOOLS_DIR, name);
+    Files.write(tool.toPath(), script.getBytes(StandardCharsets.UTF_8));
+    assertThat(tool.setExecutable(true)).isTrue();
+    return tool.getAbsolutePath();
+  }
+
+  /**
+   * Hold the compaction thread until the returned latch is released.
+   *
+   * @return
+   */
+  private CountDownLatch blockCompactions() {
+    CountDownLatch latch = new CountDownLatch(1);
+    service.compact("test", "block", () -> {
+      try {
+        latch.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return false;
+    });
+    return latch;
+  }
+
+  /**
+   * Wait for the compactions scheduled so far to be done.
+   *
+   * @throws InterruptedException
+   */
+  private void awaitCompactions() throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(1);
+    service.compact("test", "await", () -> {
+      done.countDown();
+      return false;
+    });
+    assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+  }
+
+  private static File getVCFFolder(String storeName, String vcfName) {
+    return new File(DATA_DIR, "data" + File.separator + storeName + File.separator + vcfName);
+  }
+
+  private static Properties loadProperties(File propFile) throws IOException {
+    Properties prop = new Properties();
+    try (InputStream in = new FileInputStream(propFile)) {
+      prop.load(in);
+    }
+    return prop;
+  }
+
+  private static List<String> read(VCFStore store, String vcfName) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    store.readVCF(vcfName, out);
+    return lines(out);
+  }
+
+  private static InputStream vcf(String... lines) {
+    return new ByteArrayInputStream((String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static List<String> lines(ByteArrayOutputStream out) {
+    return Arrays.asList(new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n"));
+  }
+
+  private static List<String> calls() throws IOException {
+    File log = new File(TOOLS_DIR, "calls.log");
+    return log.exists() ? Files.readAllLines(log.toPath()) : Collections.emptyList();
+  }
+}
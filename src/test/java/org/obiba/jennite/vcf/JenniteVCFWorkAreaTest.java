@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.jennite.vcf;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.obiba.core.util.FileUtil;
+import org.obiba.opal.spi.vcf.VCFStoreService;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.Properties;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class JenniteVCFWorkAreaTest {
+
+  private static final File WORK_DIR = new File("target/test-work");
+
+  @Before
+  public void setUp() throws IOException {
+    FileUtil.delete(WORK_DIR);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtil.delete(WORK_DIR);
+  }
+
+  @Test
+  public void testStartDeletesOrphans() throws IOException {
+    File orphan = createFile("orphan.vcf.gz", 10, 0);
+    File orphanFolder = new File(WORK_DIR, "store/vcf");
+    orphanFolder.mkdirs();
+    JenniteVCFWorkArea workArea = new JenniteVCFWorkArea(WORK_DIR, 0, 0);
+    workArea.start();
+    try {
+      assertThat(orphan.exists()).isFalse();
+      assertThat(new File(WORK_DIR, "store").exists()).isFalse();
+    } finally {
+      workArea.stop();
+    }
+  }
+
+  @Test
+  public void testCloseDeletesWorkFile() throws IOException {
+    JenniteVCFWorkArea workArea = new JenniteVCFWorkArea(WORK_DIR, 0, 0);
+    JenniteVCFWorkArea.WorkFile workFile = workArea.newFile("store/vcf", "data_", ".vcf.gz");
+    File file = workFile.getFile();
+    assertThat(file.exists()).isTrue();
+    assertThat(file.getParentFile().getName()).isEqualTo("vcf");
+    workFile.close();
+    assertThat(file.exists()).isFalse();
+  }
+
+  @Test
+  public void testCleanTooOld() throws IOException {
+    JenniteVCFWorkArea workArea = new JenniteVCFWorkArea(WORK_DIR, 60000, 0);
+    File old = createFile("store/old.vcf.gz", 10, 120000);
+    File recent = createFile("store/recent.vcf.gz", 10, 1000);
+    workArea.clean();
+    assertThat(old.exists()).isFalse();
+    assertThat(recent.exists()).isTrue();
+  }
+
+  @Test
+  public void testCleanTooBig() throws IOException {
+    JenniteVCFWorkArea workArea = new JenniteVCFWorkArea(WORK_DIR, 0, 100);
+    File oldest = createFile("a/oldest.vcf.gz", 60, 3000);
+    File older = createFile("b/older.vcf.gz", 60, 2000);
+    File newest = createFile("a/newest.vcf.gz", 60, 1000);
+    workArea.clean();
+    assertThat(oldest.exists()).isFalse();
+    assertThat(older.exists()).isFalse();
+    assertThat(newest.exists()).isTrue();
+  }
+
+  @Test
+  public void testCleanSkipsFilesInUse() throws IOException {
+    JenniteVCFWorkArea workArea = new JenniteVCFWorkArea(WORK_DIR, 60000, 100);
+    JenniteVCFWorkArea.WorkFile workFile = workArea.newFile("store", "data_", ".vcf.gz");
+    File file = workFile.getFile();
+    Files.write(file.toPath(), new byte[200]);
+    Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(System.currentTimeMillis() - 120000));
+    File unused = createFile("store/unused.vcf.gz", 10, 1000);
+    workArea.clean();
+    assertThat(file.exists()).isTrue();
+    assertThat(unused.exists()).isFalse();
+    workFile.close();
+    assertThat(file.exists()).isFalse();
+  }
+
+  @Test
+  public void testCleanWithoutWorkDir() {
+    new JenniteVCFWorkArea(WORK_DIR, 60000, 100).clean();
+    assertThat(WORK_DIR.exists()).isFalse();
+  }
+
+  @Test
+  public void testNewWorkArea() throws IOException {
+    Properties properties = new Properties();
+    properties.setProperty(VCFStoreService.WORK_DIR_PROPERTY, WORK_DIR.getPath());
+    properties.setProperty("work.max.age", "not a number");
+    JenniteVCFWorkArea workArea = JenniteVCFWorkArea.newWorkArea(properties);
+    File old = createFile("old.vcf.gz", 10, 2 * 3600000);
+    File recent = createFile("recent.vcf.gz", 10, 1800000);
+    workArea.clean();
+    assertThat(old.exists()).isFalse();
+    assertThat(recent.exists()).isTrue();
+  }
+
+  private File createFile(String path, int size, long age) throws IOException {
+    File file = new File(WORK_DIR, path);
+    file.getParentFile().mkdirs();
+    Files.write(file.toPath(), new byte[size]);
+    Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(System.currentTimeMillis() - age));
+    return file;
+  }
+}